@@ -0,0 +1,33 @@
+package org.example;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with 1, 4 and 16 threads. Normal JMH command line options (like a benchmark filter or
+ * parameters) can be given as arguments when running this class directly.
+ * <p>
+ * Run with: mvn -Pjmh test-compile exec:exec
+ */
+public class BenchmarkRunner {
+
+    private static final int[] THREAD_COUNTS = {1, 4, 16};
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        for (int threads : THREAD_COUNTS) {
+            OptionsBuilder options = new OptionsBuilder();
+            options.parent(commandLineOptions)
+                    .threads(threads)
+                    .forks(1);
+            if (commandLineOptions.getIncludes().isEmpty()) {
+                options.include(TaskRegistryBenchmark.class.getSimpleName())
+                        .include(TaskFanOutBenchmark.class.getSimpleName());
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the subscriber handling of a {@link Task} with different amounts of existing subscribers. Run
+ * with different thread counts via {@link BenchmarkRunner}.
+ * <p>
+ * A task can only be completed once, so each thread completes a batch of its own tasks, built before each
+ * iteration, and the time of the batch is divided by its size.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TaskFanOutBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int subscribers;
+
+    private static final int BATCH = 16;
+
+    private Task popularTask;
+
+    @Setup(Level.Trial)
+    public void setupPopularTask() {
+        popularTask = createTask(subscribers);
+    }
+
+    /**
+     * The tasks a thread completes in an iteration.
+     */
+    @State(Scope.Thread)
+    public static class TasksToComplete {
+
+        private final Task[] tasks = new Task[BATCH];
+
+        @Setup(Level.Iteration)
+        public void setup(TaskFanOutBenchmark benchmark) {
+            for (int i = 0; i < BATCH; i++) {
+                tasks[i] = createTask(benchmark.subscribers);
+            }
+        }
+    }
+
+    private static Task createTask(int subscribers) {
+        Task task = new Task(1, "Benchmark task", LocalDateTime.now(), 3600);
+        for (int i = 0; i < subscribers; i++) {
+            task.subscribe();
+        }
+        return task;
+    }
+
+    @Benchmark
+    public CompletableFuture<String> subscribeAndUnsubscribe() {
+        CompletableFuture<String> subscription = popularTask.subscribe();
+        popularTask.unSubscribe(subscription);
+        return subscription;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 100)
+    @Measurement(iterations = 50)
+    @OperationsPerInvocation(BATCH)
+    public Task[] complete(TasksToComplete toComplete) {
+        for (Task task : toComplete.tasks) {
+            task.complete("Done");
+        }
+        return toComplete.tasks;
+    }
+}
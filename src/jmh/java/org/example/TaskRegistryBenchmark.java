@@ -0,0 +1,107 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the hot paths of {@link AppWideTasks}: starting tasks, listing them and the deadline maintenance,
+ * with different amounts of tasks already registered, in both storages. Run with different thread counts via
+ * {@link BenchmarkRunner}.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TaskRegistryBenchmark {
+
+    @Param({"100", "10000", "100000"})
+    public int registeredTasks;
+
+    @Param({"OBJECTS", "COMPACT"})
+    public AppWideTasks.Storage storage;
+
+    private TaskExecutors taskExecutors;
+    private AppWideTasks appWideTasks;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        taskExecutors = new TaskExecutors(TaskExecutors.Mode.VIRTUAL, 1, meterRegistry);
+        TaskAdmission admission = new TaskAdmission(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, meterRegistry);
+        TaskResultCache results = new TaskResultCache(60, 10_000_000, 1L << 30, 1 << 20,
+                System.getProperty("java.io.tmpdir"), meterRegistry);
+        appWideTasks = new AppWideTasks(taskExecutors, admission, TaskJournal.disabled(),
+                results, new LocalTaskRegistry(), storage, 1000,
+                TaskClock.system(), new DurationEstimator(50, 1000, TaskClock.system(), meterRegistry), meterRegistry);
+        for (int i = 0; i < registeredTasks; i++) {
+            // Long enough to not expire during the iteration
+            appWideTasks.scheduleTask("Registered task", 3600);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        appWideTasks.stopExpiryThread();
+        taskExecutors.shutdown();
+    }
+
+    @Benchmark
+    public Task startTask() {
+        return appWideTasks.startTask("Benchmark task", 3600);
+    }
+
+    @Benchmark
+    public void getActiveTasks(Blackhole blackhole) {
+        for (Task task : appWideTasks.getActiveTasks()) {
+            blackhole.consume(task);
+        }
+    }
+
+    /**
+     * The first page of the task grid, sorted by name.
+     */
+    @Benchmark
+    public List<Task> findTasks() {
+        return appWideTasks.findTasks(TaskFilter.ALL, Comparator.comparing(Task::name)
+                .thenComparingLong(Task::id), 0, 50);
+    }
+
+    @Benchmark
+    public Task getTask() {
+        return appWideTasks.getTask(registeredTasks / 2);
+    }
+
+    /**
+     * A maintenance tick when nothing is due, the common case.
+     */
+    @Benchmark
+    public void maintainTasks() {
+        appWideTasks.maintainTasks();
+    }
+
+    /**
+     * The full life cycle of a task that is due immediately: start, expire and complete.
+     */
+    @Benchmark
+    public void startAndComplete() {
+        appWideTasks.startTask("Benchmark task", 0);
+        appWideTasks.maintainTasks();
+    }
+}
@@ -1,40 +1,1027 @@
 package org.example;
 
-import org.springframework.scheduling.annotation.Scheduled;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 @Service
 public class AppWideTasks {
 
-    private static int nextId = 0;
+    /**
+     * How the scheduled tasks (the ones started with startTask, not the jobs) are stored, tasks.storage.
+     */
+    public enum Storage {
+        /**
+         * Each task is a {@link Task} object, with its deadline in a queue.
+         */
+        OBJECTS,
+        /**
+         * The tasks are stored in primitive arrays, see {@link CompactTaskStore}, and materialized as Task objects
+         * only when asked for, e.g. by {@link #getTask(long)} or by the pages of {@link #findTasks}. Iterating
+         * {@link #getActiveTasks()} returns snapshots of the tasks not materialized. For millions of tasks on a
+         * single node, in a cluster all tasks are materialized to publish them.
+         */
+        COMPACT
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(AppWideTasks.class);
+
+    private static final int PROGRESS_STEPS = 20;
+
+    private static final Flow.Subscription SUBSCRIBING = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    };
+
+    /**
+     * Numbers the tasks started by the system on this node.
+     */
+    private final AtomicLong systemTasks = new AtomicLong();
+
+    /**
+     * The active tasks owned (executed) by this node.
+     */
+    private final Map<Long, Task> activeTasks = new ConcurrentHashMap<>();
+
+    /**
+     * The active scheduled tasks owned by this node with the compact storage, null with the object storage.
+     */
+    private final CompactTaskStore compactTasks;
+
+    /**
+     * All active tasks owned by this node, in both of the above.
+     */
+    private final Collection<Task> ownedTasks;
 
-    private List<Task> activeTasks = new ArrayList<>();
+    /**
+     * All active tasks, including the ones owned by other nodes in a cluster.
+     */
+    private final Collection<Task> activeTasksView;
+
+    /**
+     * All active tasks except the ones in the compact storage, which are listed without materializing them.
+     */
+    private final Collection<Task> objectTasksView;
+
+    /**
+     * Deadlines of the active tasks, the head of the queue is always the task that is due next.
+     */
+    private final DelayQueue<Expiry> expiries = new DelayQueue<>();
+
+    private Thread expiryThread;
+
+    /**
+     * The tasks in this demo don't do any real work, this reports their progress like a real job would.
+     */
+    private final ScheduledThreadPoolExecutor progressSimulator = new ScheduledThreadPoolExecutor(1,
+            Thread.ofPlatform().name("task-progress-simulator").daemon().factory());
+
+    private final TaskExecutors taskExecutors;
+    private final TaskAdmission admission;
+    private final TaskJournal journal;
+    private final TaskResultCache results;
+    private final TaskRegistry registry;
+    private final TaskClock clock;
+    private final DurationEstimator estimator;
+
+    private final List<Consumer<TaskEvent>> taskListeners = new CopyOnWriteArrayList<>();
+    /**
+     * The tasks whose progress is forwarded to the task listeners, with their progress subscriptions. A task is
+     * mapped to {@link #SUBSCRIBING} until the publisher hands out the subscription.
+     */
+    private final Map<Task, Flow.Subscription> progressFollowed = new ConcurrentHashMap<>();
+    /**
+     * The chunked results of the running streaming jobs, moved to the result cache when the job completes.
+     */
+    private final Map<Long, ChunkedResult> streamingResults = new ConcurrentHashMap<>();
+    /**
+     * The recently finished tasks, the oldest first, for listing them with {@link #findTasks}. At most
+     * retainedFinished, the oldest are dropped. Guarded by itself.
+     */
+    private final Deque<Task> finishedTasks = new ArrayDeque<>();
+    private final int retainedFinished;
+
+    private final Counter startedTasks;
+    private final Counter completedTasks;
+    private final Counter cancelledTasks;
+    private final Counter failedTasks;
+    private final Timer completionLag;
+    private final DistributionSummary subscribersPerTask;
+
+    public AppWideTasks(TaskExecutors taskExecutors, TaskAdmission admission, TaskJournal journal,
+                        TaskResultCache results, TaskRegistry registry,
+                        @Value("${tasks.storage:OBJECTS}") Storage storage,
+                        @Value("${tasks.retained-finished:1000}") int retainedFinished, TaskClock clock,
+                        DurationEstimator estimator, MeterRegistry meterRegistry) {
+        this.taskExecutors = taskExecutors;
+        this.admission = admission;
+        this.journal = journal;
+        this.results = results;
+        this.registry = registry;
+        this.clock = clock;
+        this.estimator = estimator;
+        this.retainedFinished = retainedFinished;
+        Collection<Task> objectTasks = Collections.unmodifiableCollection(activeTasks.values());
+        if (storage == Storage.COMPACT) {
+            compactTasks = new CompactTaskStore();
+            ownedTasks = new AbstractCollection<>() {
+                @Override
+                public Iterator<Task> iterator() {
+                    // Snapshots, materializing every task would undo the compact storage
+                    return Stream.concat(activeTasks.values().stream(), compactTasks.stream().map(
+                            AppWideTasks.this::taskOrSnapshot)).iterator();
+                }
+
+                @Override
+                public int size() {
+                    return activeTasks.size() + compactTasks.size();
+                }
+            };
+            objectTasksView = registry.allTasks(objectTasks);
+        } else {
+            compactTasks = null;
+            ownedTasks = objectTasks;
+            objectTasksView = null;
+        }
+        this.activeTasksView = registry.allTasks(ownedTasks);
+        Gauge.builder("tasks.active", ownedTasks, Collection::size)
+                .description("Tasks currently running")
+                .register(meterRegistry);
+        startedTasks = Counter.builder("tasks.started")
+                .description("Tasks started")
+                .register(meterRegistry);
+        completedTasks = Counter.builder("tasks.completed")
+                .description("Tasks completed")
+                .register(meterRegistry);
+        cancelledTasks = Counter.builder("tasks.cancelled")
+                .description("Tasks cancelled")
+                .register(meterRegistry);
+        failedTasks = Counter.builder("tasks.failed")
+                .description("Jobs whose work failed")
+                .register(meterRegistry);
+        completionLag = Timer.builder("tasks.completion.lag")
+                .description("Time between the scheduled and the actual completion of a task")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        subscribersPerTask = DistributionSummary.builder("tasks.subscribers")
+                .description("Subscribers of a task at the time of its completion")
+                .baseUnit("subscribers")
+                .register(meterRegistry);
+        // Completed tasks should not linger in the simulator queue
+        progressSimulator.setRemoveOnCancelPolicy(true);
+    }
 
     public Task startTask(String name, int duration) {
-        Task task = new Task(nextId++, name, LocalDateTime.now(), duration);
-        activeTasks.add(task);
+        Task task = new Task(registry.newId(), name, LocalDateTime.now(clock), duration);
+        journal.started(task.id(), name, epochMillis(task), duration, false);
+        schedule(task, TimeUnit.SECONDS.toNanos(duration));
         return task;
     }
 
-    public List<Task> getActiveTasks() {
-        return new ArrayList<>(activeTasks);
+    /**
+     * Starts a task like {@link #startTask(String, int)}, for starting lots of tasks: with the compact storage, the
+     * task is not materialized as a {@link Task} object until asked for, e.g. by {@link #getTask(long)}.
+     *
+     * @param name the name of the task
+     * @param duration the duration, in seconds
+     * @return the id of the started task
+     */
+    public long scheduleTask(String name, int duration) {
+        if (compactTasks == null) {
+            return startTask(name, duration).id();
+        }
+        long id = registry.newId();
+        long startEpochMillis = clock.millis();
+        journal.started(id, name, startEpochMillis, duration, false);
+        scheduleCompact(id, name, startEpochMillis, duration, TimeUnit.SECONDS.toNanos(duration));
+        return id;
+    }
+
+    private void schedule(Task task, long remainingNanos) {
+        long deadline = clock.nanoTime() + remainingNanos;
+        startedTasks.increment();
+        simulateProgress(task, deadline);
+        if (compactTasks != null) {
+            compactTasks.add(task.id(), task.name(), epochMillis(task), task.duration(), deadline, task);
+        } else {
+            activeTasks.put(task.id(), task);
+            expiries.add(new Expiry(task, deadline, clock));
+        }
+        registry.started(task);
+        added(task);
     }
 
-    @Scheduled(fixedRate = 100)
+    private void scheduleCompact(long id, String name, long startEpochMillis, int duration, long remainingNanos) {
+        compactTasks.add(id, name, startEpochMillis, duration, clock.nanoTime() + remainingNanos, null);
+        startedTasks.increment();
+        if (registry.publishesTasks()) {
+            Task task = materialize(id);
+            if (task != null) {
+                registry.started(task);
+            }
+        }
+        if (!taskListeners.isEmpty()) {
+            fire(new TaskEvent(TaskEvent.Type.ADDED, snapshot(id, name, startEpochMillis, duration)));
+        }
+    }
+
+    private void simulateProgress(Task task, long deadline) {
+        if (!clock.isRealTime()) {
+            // The simulator runs in real time, it would only burn CPU while the virtual time jumps to the deadlines
+            return;
+        }
+        long durationNanos = TimeUnit.SECONDS.toNanos(task.duration());
+        long startNanos = deadline - durationNanos;
+        ScheduledFuture<?> progressSimulation = progressSimulator.scheduleAtFixedRate(
+                () -> task.reportProgress(Math.min(1.0, (clock.nanoTime() - startNanos) / (double) durationNanos)),
+                0, Math.max(1, durationNanos / PROGRESS_STEPS), TimeUnit.NANOSECONDS);
+        task.setWorker(progressSimulation);
+    }
+
+    /**
+     * @return the task of the compact storage, materialized if not yet, or null if there is no such task
+     */
+    private Task materialize(long id) {
+        Task task = compactTasks.materialize(id, entry -> {
+            Task materialized = snapshot(entry.id(), entry.name(), entry.startEpochMillis(), entry.duration());
+            simulateProgress(materialized, entry.deadline());
+            return materialized;
+        });
+        if (task != null) {
+            followProgress(task);
+        }
+        return task;
+    }
+
+    private long epochMillis(Task task) {
+        return task.start().atZone(clock.getZone()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Creates a Task object for a task of the compact storage. Unless stored as the materialized task, it is a
+     * snapshot not known by anyone, e.g. for the events and for comparing the tasks while finding them.
+     */
+    private Task snapshot(long id, String name, long startEpochMillis, int duration) {
+        return new Task(id, name, LocalDateTime.ofInstant(Instant.ofEpochMilli(startEpochMillis), clock.getZone()),
+                duration);
+    }
+
+    /**
+     * @return the materialized task, or a snapshot if not materialized
+     */
+    private Task taskOrSnapshot(CompactTaskStore.Entry entry) {
+        return entry.task() != null ? entry.task()
+                : snapshot(entry.id(), entry.name(), entry.startEpochMillis(), entry.duration());
+    }
+
+    /**
+     * Submits a task via admission control, this is what end users should use to start tasks. The task starts
+     * right away if there is capacity, otherwise it waits in a bounded queue.
+     *
+     * @param owner the owner of the task (e.g. the id of the session), used to limit the tasks per owner
+     * @param name the name of the task
+     * @param duration the duration, in seconds
+     * @return the ticket, telling the position in the wait queue and giving the task once it has started
+     * @throws TaskRejectedException if the owner has too many tasks or the wait queue is full
+     */
+    public TaskTicket submitTask(String owner, String name, int duration) {
+        return admission.admit(owner, () -> startTask(name, duration));
+    }
+
+    /**
+     * Submits a job via admission control, see {@link #submitTask(String, String, int)} and
+     * {@link #startJob(String, int, Function)}.
+     */
+    public TaskTicket submitJob(String owner, String name, int estimatedDuration,
+                                Function<Consumer<Double>, String> job) {
+        return admission.admit(owner, () -> startJob(name, estimatedDuration, job));
+    }
+
+    /**
+     * Submits a streaming job via admission control, see {@link #submitTask(String, String, int)} and
+     * {@link #startStreamingJob(String, int, BiFunction)}.
+     */
+    public TaskTicket submitStreamingJob(String owner, String name, int estimatedDuration,
+                                         BiFunction<Consumer<Double>, ChunkedResult, String> job) {
+        return admission.admit(owner, () -> startStreamingJob(name, estimatedDuration, job));
+    }
+
+    /**
+     * Starts a job whose result is too large for a String, e.g. a report: the job appends the result in chunks to
+     * a {@link ChunkedResult}, which spills to a file above a size, and returns a short summary as the result of
+     * the task. The chunks can be read with {@link #getChunkedResult(long)} already while the job is running.
+     * <p>
+     * The chunked result is discarded if the job fails or is cancelled. It is not journaled, so it is lost on a
+     * restart, and in a cluster it is only available on the node running the job.
+     *
+     * @param name the name of the task
+     * @param estimatedDuration the estimated duration, in seconds, used until the duration has been learned
+     * @param job the work, gets a progress listener and the result to write to as parameters and returns the
+     *            summary
+     * @return the started task
+     */
+    public Task startStreamingJob(String name, int estimatedDuration,
+                                  BiFunction<Consumer<Double>, ChunkedResult, String> job) {
+        ChunkedResult chunks = results.newChunkedResult();
+        return startJob(name, estimatedDuration, progressListener -> {
+            String summary = job.apply(progressListener, chunks);
+            chunks.finish();
+            return summary;
+        }, chunks);
+    }
+
+    /**
+     * @param id the id of a streaming job, running or completed on this node
+     * @return the chunked result of the job, or empty if there is no such job or its result is not available
+     * (any more)
+     */
+    public Optional<ChunkedResult> getChunkedResult(long id) {
+        return Optional.ofNullable(streamingResults.get(id)).or(() -> results.getChunked(id));
+    }
+
+    /**
+     * Starts a task that does real work. The task completes when the job returns, and it can be cancelled, which
+     * interrupts the thread running the job.
+     * <p>
+     * The durations of the jobs are learned by their name: once jobs of the same name have completed a few times,
+     * their median duration is used as the duration of the task instead of the given estimate.
+     *
+     * @param name the name of the task
+     * @param estimatedDuration the estimated duration, in seconds, used until the duration has been learned
+     * @param job the work, gets a progress listener as a parameter and returns the result of the task
+     * @return the started task
+     */
+    public Task startJob(String name, int estimatedDuration, Function<Consumer<Double>, String> job) {
+        return startJob(name, estimatedDuration, job, null);
+    }
+
+    private Task startJob(String name, int estimatedDuration, Function<Consumer<Double>, String> job,
+                          ChunkedResult chunks) {
+        int duration = estimator.getEstimate(name)
+                .map(estimate -> (int) Math.max(1, TimeUnit.MILLISECONDS.toSeconds(estimate.p50Millis() + 999)))
+                .orElse(estimatedDuration);
+        Task task = new Task(registry.newId(), name, LocalDateTime.now(clock), duration);
+        long startNanos = clock.nanoTime();
+        if (chunks != null) {
+            streamingResults.put(task.id(), chunks);
+        }
+        activeTasks.put(task.id(), task);
+        startedTasks.increment();
+        journal.started(task.id(), name, epochMillis(task), duration, true);
+        registry.started(task);
+        added(task);
+        if (journal.isEnabled()) {
+            task.progress().subscribe(journal.progressCheckpoints(task.id()));
+        }
+        task.setWorker(taskExecutors.getExecutor().submit(() -> {
+            try {
+                String result = job.apply(task::reportProgress);
+                if (!task.isCompleted()) {
+                    // Not cut short by a cancellation
+                    estimator.record(name, TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - startNanos));
+                }
+                completeJob(task, result);
+            } catch (CancellationException e) {
+                if (!task.isCompleted()) {
+                    // Not via cancelTask, e.g. the executor was shut down: interrupted work is cancelled too
+                    cancelTask(task.id());
+                }
+            } catch (RuntimeException e) {
+                failJob(task, e);
+            }
+        }));
+        return task;
+    }
+
+    private void completeJob(Task task, String result) {
+        results.put(task.id(), result);
+        ChunkedResult chunks = streamingResults.get(task.id());
+        if (chunks != null) {
+            results.putChunked(task.id(), chunks);
+        }
+        retainFinished(task);
+        if (task.completeOutcome(result)) {
+            activeTasks.remove(task.id(), task);
+            streamingResults.remove(task.id());
+            subscribersPerTask.record(task.subscriberCount());
+            journal.completed(task.id(), result);
+            registry.completed(task.id(), result);
+            task.notifyCompleted();
+            fire(new TaskEvent(TaskEvent.Type.COMPLETED, task));
+            completedTasks.increment();
+        } else {
+            // Cancelled meanwhile
+            forgetFinished(task);
+            results.invalidate(task.id());
+            discardChunks(task.id());
+        }
+    }
+
+    /**
+     * Fails the job, its subscribers get a {@link TaskFailedException}. Nothing is cached, so asking for the result
+     * later tells that there is none instead of returning the error as a result.
+     */
+    private void failJob(Task task, RuntimeException error) {
+        discardChunks(task.id());
+        String message = "Task " + task.name() + " failed: " + error.getMessage();
+        retainFinished(task);
+        if (!task.fail(new TaskFailedException(message, error))) {
+            // Cancelled meanwhile
+            forgetFinished(task);
+            return;
+        }
+        activeTasks.remove(task.id(), task);
+        subscribersPerTask.record(task.subscriberCount());
+        // No result to recover
+        journal.cancelled(task.id());
+        registry.failed(task.id(), message);
+        fire(new TaskEvent(TaskEvent.Type.REMOVED, task));
+        failedTasks.increment();
+    }
+
+    private void discardChunks(long id) {
+        ChunkedResult chunks = streamingResults.remove(id);
+        if (chunks != null) {
+            chunks.close();
+        }
+    }
+
+    /**
+     * Cancels the given active task. The thread running the task (if any) is interrupted, and subscribers get a
+     * {@link CancellationException}. In a cluster, the cancellation of a task owned by another node is forwarded to
+     * its owner, and happens asynchronously.
+     *
+     * @param id the id of the task
+     * @return true if the task was cancelled, false if there was no such active task
+     */
+    public boolean cancelTask(long id) {
+        if (!registry.isOwned(id)) {
+            return registry.cancelRemote(id);
+        }
+        Task task = activeTasks.get(id);
+        if (task != null) {
+            retainFinished(task);
+            if (!task.cancel()) {
+                // Completed or failed meanwhile
+                forgetFinished(task);
+                return false;
+            }
+            // The deadline of the task (if any) is left in the queue, it is ignored when it expires
+            activeTasks.remove(id, task);
+        } else if (compactTasks != null) {
+            task = compactTasks.remove(id, this::retainFinished);
+            if (task == null) {
+                return false;
+            }
+            task.cancel();
+        } else {
+            return false;
+        }
+        discardChunks(id);
+        journal.cancelled(id);
+        registry.cancelled(id);
+        fire(new TaskEvent(TaskEvent.Type.REMOVED, task));
+        cancelledTasks.increment();
+        return true;
+    }
+
+    /**
+     * @param id the id of the task
+     * @return the active task with given id or null if there is no such task (any more)
+     */
+    public Task getTask(long id) {
+        if (!registry.isOwned(id)) {
+            return registry.getRemoteTask(id);
+        }
+        Task task = activeTasks.get(id);
+        return task != null || compactTasks == null ? task : materialize(id);
+    }
+
+    /**
+     * Subscribes to the result of a task by its id. Works also after the task has completed (and is no longer
+     * active), as long as its result is still cached.
+     *
+     * @param id the id of the task
+     * @return a future for the result of the task, failed with a NoSuchElementException if the task is not active
+     * and its result is not available (any more)
+     */
+    public CompletableFuture<String> subscribe(long id) {
+        Task task = getTask(id);
+        if (task != null) {
+            return task.subscribe();
+        }
+        // Results are cached before the task is removed from the active ones, so a task completing right after
+        // the lookup above is found here
+        return results.get(id)
+                .map(CompletableFuture::completedFuture)
+                .orElseGet(() -> CompletableFuture.failedFuture(
+                        new NoSuchElementException("No active task or cached result for task " + id)));
+    }
+
+    /**
+     * @param id the id of a completed task
+     * @return the result of the task, if still cached
+     */
+    public Optional<String> getResult(long id) {
+        return results.get(id);
+    }
+
+    /**
+     * Returns a live, read-only view of the currently active tasks, in a cluster including the tasks owned by the
+     * other nodes. The view is not copied, and it can be iterated safely while other threads start and finish tasks
+     * (the iteration is weakly consistent). With the compact storage, the tasks not materialized are returned as
+     * snapshots, which are not updated or completed: use {@link #getTask(long)} or {@link #subscribe(long)} for the
+     * live task, and {@link #findTasks} or {@link #countTasks} to list lots of tasks.
+     *
+     * @return the currently active tasks
+     */
+    public Collection<Task> getActiveTasks() {
+        return activeTasksView;
+    }
+
+    /**
+     * Adds a listener for the changes in the active tasks, e.g. to update a listing of the tasks incrementally. The
+     * listener is called by the thread doing the change, so it must not block, e.g. UI updates should be queued
+     * with UI.access. The progress of the tasks is followed only while there are listeners.
+     *
+     * @param listener the listener
+     * @return removes the listener when run
+     */
+    public Runnable addTaskListener(Consumer<TaskEvent> listener) {
+        // Serialized with the removal, so unfollowing after the last listener can't drop a new listener's tasks
+        synchronized (taskListeners) {
+            taskListeners.add(listener);
+            if (compactTasks == null) {
+                activeTasksView.forEach(this::followProgress);
+            } else {
+                // Only the materialized tasks are followed, the others have no one to show their progress to
+                objectTasksView.forEach(this::followProgress);
+                for (CompactTaskStore.Entry entry : compactTasks) {
+                    if (entry.task() != null) {
+                        followProgress(entry.task());
+                    }
+                }
+            }
+        }
+        return () -> {
+            synchronized (taskListeners) {
+                if (taskListeners.remove(listener) && taskListeners.isEmpty()) {
+                    unfollowProgress();
+                }
+            }
+        };
+    }
+
+    private void added(Task task) {
+        followProgress(task);
+        fire(new TaskEvent(TaskEvent.Type.ADDED, task));
+    }
+
+    private void followProgress(Task task) {
+        if (taskListeners.isEmpty() || task.isCompleted()
+                || progressFollowed.putIfAbsent(task, SUBSCRIBING) != null) {
+            return;
+        }
+        task.progress().subscribe(new Flow.Subscriber<>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                if (!progressFollowed.replace(task, SUBSCRIBING, subscription)) {
+                    // Unfollowed already, the last listener was removed meanwhile
+                    subscription.cancel();
+                    return;
+                }
+                // Already coalesced and rate limited by the publisher
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Double progress) {
+                if (taskListeners.isEmpty()) {
+                    // Followed just when the last listener was removed
+                    progressFollowed.remove(task, subscription);
+                    subscription.cancel();
+                    return;
+                }
+                fire(new TaskEvent(TaskEvent.Type.PROGRESS, task));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                progressFollowed.remove(task, subscription);
+            }
+
+            @Override
+            public void onComplete() {
+                progressFollowed.remove(task, subscription);
+            }
+        });
+    }
+
+    /**
+     * Cancels the progress subscriptions, when there are no listeners to forward the progress to. The publishers
+     * stop their dispatch when the last subscriber cancels.
+     */
+    private void unfollowProgress() {
+        for (Iterator<Flow.Subscription> iterator = progressFollowed.values().iterator(); iterator.hasNext(); ) {
+            Flow.Subscription subscription = iterator.next();
+            iterator.remove();
+            subscription.cancel();
+        }
+    }
+
+    private void fire(TaskEvent event) {
+        for (Consumer<TaskEvent> listener : taskListeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                // A broken listener must not prevent the others from being notified, or fail the task
+                log.warn("Task listener failed on {}", event, e);
+            }
+        }
+    }
+
+    /**
+     * Lists a task as finished. Called before the task is removed from the active tasks, so that the listings find
+     * it in one or the other (or briefly both, see {@link #findTasks}), never in neither.
+     */
+    private void retainFinished(Task task) {
+        if (retainedFinished <= 0) {
+            return;
+        }
+        synchronized (finishedTasks) {
+            if (finishedTasks.size() >= retainedFinished) {
+                finishedTasks.removeFirst();
+            }
+            finishedTasks.addLast(task);
+        }
+    }
+
+    /**
+     * @return the task retained as finished, for removing the task from the compact storage
+     */
+    private Task retainFinished(CompactTaskStore.Entry entry) {
+        Task task = taskOrSnapshot(entry);
+        retainFinished(task);
+        return task;
+    }
+
+    /**
+     * Undoes {@link #retainFinished(Task)}, when another thread finished the task first.
+     */
+    private void forgetFinished(Task task) {
+        synchronized (finishedTasks) {
+            finishedTasks.removeLastOccurrence(task);
+        }
+    }
+
+    /**
+     * @return true if the task is still listed as active, e.g. when retained as finished just before its removal
+     */
+    private boolean isActive(long id) {
+        if (!registry.isOwned(id)) {
+            return registry.getRemoteTask(id) != null;
+        }
+        return activeTasks.containsKey(id) || compactTasks != null && compactTasks.contains(id);
+    }
+
+    private List<Task> finishedTasks() {
+        synchronized (finishedTasks) {
+            return new ArrayList<>(finishedTasks);
+        }
+    }
+
+    /**
+     * @return true if the filter may match active tasks, false if it only matches finished ones
+     */
+    private static boolean matchesActive(TaskFilter filter) {
+        return filter.status() == null || filter.status() == Task.Status.RUNNING;
+    }
+
+    /**
+     * Finds a page of the active and the recently finished tasks (at most tasks.retained-finished of them, finished
+     * on this node or, in a cluster, seen finishing on other nodes), for lazy loading e.g. in a Grid. The tasks are
+     * neither copied nor fully sorted: only the first offset + limit matches are kept (in a bounded heap) while the
+     * tasks are iterated, so fetching the first pages is cheap even with a huge amount of tasks. With the compact
+     * storage, only the tasks of the page are materialized.
+     *
+     * @param filter the filter for the tasks
+     * @param order the order of the tasks, ties should be broken (e.g. by id) for stable paging
+     * @param offset the index of the first task to return
+     * @param limit the maximum number of tasks to return
+     * @return the tasks, in the given order
+     */
+    public List<Task> findTasks(TaskFilter filter, Comparator<Task> order, int offset, int limit) {
+        int wanted = (int) Math.min(Integer.MAX_VALUE - 8, (long) offset + limit);
+        if (wanted <= 0) {
+            return List.of();
+        }
+        // The head of the heap is the last of the tasks kept so far
+        PriorityQueue<Task> heap = new PriorityQueue<>(Math.min(wanted, 1024), order.reversed());
+        if (matchesActive(filter)) {
+            for (Task task : compactTasks == null ? activeTasksView : objectTasksView) {
+                if (filter.test(task)) {
+                    offer(heap, wanted, order, task);
+                }
+            }
+            if (compactTasks != null) {
+                for (CompactTaskStore.Entry entry : compactTasks) {
+                    if (filter.matches(entry.name(), Task.Status.RUNNING)) {
+                        offer(heap, wanted, order, taskOrSnapshot(entry));
+                    }
+                }
+            }
+        }
+        if (filter.status() != Task.Status.RUNNING) {
+            // A task finishing right now may have been found among the active ones already
+            Set<Long> found = new HashSet<>();
+            heap.forEach(task -> found.add(task.id()));
+            for (Task task : finishedTasks()) {
+                if (filter.test(task) && !found.contains(task.id())) {
+                    offer(heap, wanted, order, task);
+                }
+            }
+        }
+        List<Task> tasks = new ArrayList<>(heap);
+        tasks.sort(order);
+        tasks = tasks.subList(Math.min(offset, tasks.size()), tasks.size());
+        if (compactTasks != null) {
+            // Materializes the running tasks of the page, the ones finished meanwhile are left out
+            tasks = tasks.stream()
+                    .map(task -> !task.isCompleted() && registry.isOwned(task.id()) ? getTask(task.id()) : task)
+                    .filter(Objects::nonNull)
+                    .toList();
+        }
+        return tasks;
+    }
+
+    private static void offer(PriorityQueue<Task> heap, int wanted, Comparator<Task> order, Task task) {
+        if (heap.size() < wanted) {
+            heap.add(task);
+        } else if (order.compare(task, heap.peek()) < 0) {
+            heap.poll();
+            heap.add(task);
+        }
+    }
+
+    /**
+     * @param filter the filter for the tasks
+     * @return the number of active and recently finished tasks matching the filter, see {@link #findTasks}
+     */
+    public int countTasks(TaskFilter filter) {
+        if (filter.equals(TaskFilter.ALL)) {
+            int count = activeTasksView.size();
+            for (Task task : finishedTasks()) {
+                if (!isActive(task.id())) {
+                    count++;
+                }
+            }
+            return count;
+        }
+        int count = 0;
+        if (matchesActive(filter)) {
+            for (Task task : compactTasks == null ? activeTasksView : objectTasksView) {
+                if (filter.test(task)) {
+                    count++;
+                }
+            }
+            if (compactTasks != null) {
+                for (CompactTaskStore.Entry entry : compactTasks) {
+                    if (filter.matches(entry.name(), Task.Status.RUNNING)) {
+                        count++;
+                    }
+                }
+            }
+        }
+        if (filter.status() != Task.Status.RUNNING) {
+            for (Task task : finishedTasks()) {
+                if (filter.test(task) && (!matchesActive(filter) || !isActive(task.id()))) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Completes all tasks whose deadline has passed. Only the due tasks are touched, the rest of the tasks stay
+     * untouched in the deadline queue.
+     * <p>
+     * Called by the expiry thread, which sleeps until the next deadline in real time. Simulations running the tasks
+     * in virtual time call this instead, after advancing their {@link TaskClock}.
+     */
     void maintainTasks() {
-        List<Task> finished = activeTasks.stream().filter(task -> task.start().plusSeconds(task.duration()).isBefore(LocalDateTime.now()))
-                .toList();
-        activeTasks.removeAll(finished);
-        finished.forEach(task -> task.complete("Task " + task.name() + " completed at " + LocalTime.now()));
+        Expiry expiry;
+        while ((expiry = expiries.poll()) != null) {
+            finish(expiry);
+        }
+        if (compactTasks != null) {
+            CompactTaskStore.Entry due;
+            while ((due = compactTasks.peekDue(clock.nanoTime())) != null) {
+                finish(due);
+            }
+        }
 
-        if(activeTasks.isEmpty()) {
+        if(ownedTasks.isEmpty()) {
             // For the demo, make sure there is always at least one task running
-            startTask("System Initiated #" + (nextId), 15);
+            startTask("System Initiated #" + systemTasks.getAndIncrement(), 15);
+        }
+    }
+
+    private void finish(Expiry expiry) {
+        Task task = expiry.task();
+        if (activeTasks.get(task.id()) != task) {
+            // Cancelled, the deadline was left in the queue
+            return;
+        }
+        String result = "Task " + task.name() + " completed at " + LocalTime.now(clock);
+        // Cache the result and list the task as finished before removing it, so that subscribe(id) and the
+        // listings always find one or the other. Only the thread completing the outcome finishes the task
+        results.put(task.id(), result);
+        retainFinished(task);
+        if (task.completeOutcome(result)) {
+            activeTasks.remove(task.id(), task);
+            completed(task, expiry.deadline(), result);
+        } else {
+            forgetFinished(task);
+            results.invalidate(task.id());
+        }
+    }
+
+    private void finish(CompactTaskStore.Entry due) {
+        String result = "Task " + due.name() + " completed at " + LocalTime.now(clock);
+        results.put(due.id(), result);
+        // Only one thread removes the task, it is listed as finished before the removal is visible
+        Task task = compactTasks.remove(due.id(), this::retainFinished);
+        if (task != null && task.completeOutcome(result)) {
+            completed(task, due.deadline(), result);
+        } else {
+            results.invalidate(due.id());
+        }
+    }
+
+    private void completed(Task task, long deadline, String result) {
+        // Subscribers' callbacks are run by the completing thread, keep the expiry thread free for deadlines
+        completionLag.record(clock.nanoTime() - deadline, TimeUnit.NANOSECONDS);
+        subscribersPerTask.record(task.subscriberCount());
+        journal.completed(task.id(), result);
+        registry.completed(task.id(), result);
+        taskExecutors.getExecutor().execute(() -> {
+            task.notifyCompleted();
+            fire(new TaskEvent(TaskEvent.Type.COMPLETED, task));
+        });
+        completedTasks.increment();
+    }
+
+    @PostConstruct
+    void startExpiryThread() {
+        recover();
+        registry.start(new TaskRegistry.Owner() {
+            @Override
+            public Collection<Task> ownedTasks() {
+                return ownedTasks;
+            }
+
+            @Override
+            public void cancel(long id) {
+                cancelTask(id);
+            }
+
+            @Override
+            public void remoteCompleted(long id, String result) {
+                results.put(id, result);
+            }
+
+            @Override
+            public void remoteChanged(TaskEvent event) {
+                if (event.type() == TaskEvent.Type.ADDED) {
+                    added(event.task());
+                } else {
+                    if (event.type() != TaskEvent.Type.PROGRESS) {
+                        retainFinished(event.task());
+                    }
+                    fire(event);
+                }
+            }
+        });
+        maintainTasks();
+        expiryThread = Thread.ofPlatform().name("task-expiry").daemon().start(this::completeTasksOnDeadline);
+    }
+
+    /**
+     * Restores the tasks that were running when the app was stopped, from the journal.
+     */
+    private void recover() {
+        TaskJournal.Recovery recovery = journal.open();
+        registry.reserveIds(recovery.nextId());
+        recovery.completed().forEach(entry -> results.put(entry.id(), entry.result()));
+        for (TaskJournal.Entry entry : recovery.running()) {
+            if (entry.job()) {
+                // The work of a job is code in the previous JVM, it can't be resumed
+                journal.cancelled(entry.id());
+                continue;
+            }
+            long remainingMillis = entry.startEpochMillis() + TimeUnit.SECONDS.toMillis(entry.duration())
+                    - clock.millis();
+            // Tasks due during the downtime are completed by the first maintenance
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, remainingMillis));
+            if (compactTasks != null) {
+                scheduleCompact(entry.id(), entry.name(), entry.startEpochMillis(), entry.duration(), remainingNanos);
+                continue;
+            }
+            Task task = new Task(entry.id(), entry.name(),
+                    LocalDateTime.ofInstant(Instant.ofEpochMilli(entry.startEpochMillis()), clock.getZone()),
+                    entry.duration());
+            schedule(task, remainingNanos);
+        }
+    }
+
+    @PreDestroy
+    void stopExpiryThread() {
+        if (expiryThread != null) {
+            expiryThread.interrupt();
+        }
+        progressSimulator.shutdownNow();
+    }
+
+    /**
+     * Sleeps until the next deadline, instead of polling, so tasks complete exactly when they are due.
+     */
+    private void completeTasksOnDeadline() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (compactTasks != null) {
+                    compactTasks.awaitDue(clock);
+                } else {
+                    finish(expiries.take());
+                }
+                maintainTasks();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private record Expiry(Task task, long deadline, TaskClock clock) implements Delayed {
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - clock.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(deadline, ((Expiry) o).deadline);
         }
     }
 
@@ -0,0 +1,314 @@
+package org.example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A task result produced as a stream of chunks, e.g. a report or an export too large to be kept as a String. The
+ * chunks are kept in memory until their total size exceeds the spill threshold, then they are moved to a temporary
+ * file, and the rest of the chunks are appended to the file.
+ * <p>
+ * Readers don't copy the chunks: {@link #chunk(int)} returns a read-only view of a chunk in memory, or of the file
+ * mapped to memory. Reading can start while the result is still being written, e.g. to download a report while it
+ * is generated: {@link #openStream()} waits for the next chunks until the result is finished.
+ * <p>
+ * Written by a single thread, read by any number of threads. {@link #close()} releases the memory and deletes the
+ * file, readers still waiting for chunks get an IOException.
+ */
+public final class ChunkedResult implements Closeable {
+
+    /**
+     * A chunk in memory, or at the given offset of the file.
+     */
+    private record Chunk(ByteBuffer memory, long offset, int length) {
+    }
+
+    private final long spillThreshold;
+    private final Path spillDirectory;
+    // A lock instead of synchronized: spilling writes to the file, which would pin a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Chunk> chunks = new ArrayList<>();
+    private long size;
+    private long memorySize;
+    private Path path;
+    private FileChannel file;
+    private long fileSize;
+    private boolean finished;
+    private boolean closed;
+
+    /**
+     * @param spillThreshold the size in bytes above which the chunks are moved to a file
+     * @param spillDirectory the directory of the temporary file
+     */
+    public ChunkedResult(long spillThreshold, Path spillDirectory) {
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Appends a chunk. A chunk kept in memory is not copied, so the buffer must not be modified afterwards.
+     *
+     * @param chunk the bytes between the position and the limit of the buffer
+     * @throws UncheckedIOException if writing to the file fails
+     * @throws IllegalStateException if the result is already finished or closed
+     */
+    public void append(ByteBuffer chunk) {
+        ByteBuffer bytes = chunk.slice();
+        int length = bytes.remaining();
+        lock.lock();
+        try {
+            if (finished || closed) {
+                throw new IllegalStateException("The result is already " + (closed ? "closed" : "finished"));
+            }
+            if (file == null && memorySize + length > spillThreshold) {
+                spill();
+            }
+            if (file == null) {
+                chunks.add(new Chunk(bytes.asReadOnlyBuffer(), 0, length));
+                memorySize += length;
+            } else {
+                chunks.add(new Chunk(null, write(bytes), length));
+            }
+            size += length;
+            changed.signalAll();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Writing the result to " + path + " failed", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the result complete, no more chunks are appended.
+     */
+    public void finish() {
+        lock.lock();
+        try {
+            finished = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void spill() throws IOException {
+        path = Files.createTempFile(spillDirectory, "task-result-", ".bin");
+        file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (int i = 0; i < chunks.size(); i++) {
+            Chunk chunk = chunks.get(i);
+            chunks.set(i, new Chunk(null, write(chunk.memory().duplicate()), chunk.length()));
+        }
+        memorySize = 0;
+    }
+
+    /**
+     * @return the offset of the written bytes in the file
+     */
+    private long write(ByteBuffer bytes) throws IOException {
+        long offset = fileSize;
+        while (bytes.hasRemaining()) {
+            fileSize += file.write(bytes, fileSize);
+        }
+        return offset;
+    }
+
+    /**
+     * Returns a chunk without copying it. The chunk can only be asked for while the result is open, but the returned
+     * view stays readable after the result has been closed.
+     *
+     * @param index the index of the chunk, less than {@link #chunkCount()}
+     * @return a read-only view of the chunk
+     * @throws UncheckedIOException if mapping the file fails
+     * @throws IllegalStateException if the result is closed, also if closed while the chunk is being mapped
+     */
+    public ByteBuffer chunk(int index) {
+        Chunk chunk;
+        FileChannel channel;
+        lock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The result is closed");
+            }
+            chunk = chunks.get(index);
+            channel = file;
+        } finally {
+            lock.unlock();
+        }
+        if (chunk.memory() != null) {
+            return chunk.memory().duplicate();
+        }
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, chunk.offset(), chunk.length());
+        } catch (ClosedChannelException e) {
+            throw new IllegalStateException("The result is closed", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Reading the result from " + path + " failed", e);
+        }
+    }
+
+    /**
+     * Waits until a chunk has been appended, or the result is finished without it.
+     *
+     * @param index the index of the chunk
+     * @return true if the chunk is available, false if the result finished with fewer chunks
+     * @throws IllegalStateException if the result is closed
+     */
+    public boolean awaitChunk(int index) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (chunks.size() <= index && !finished && !closed) {
+                changed.await();
+            }
+            if (closed) {
+                throw new IllegalStateException("The result is closed");
+            }
+            return chunks.size() > index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Opens a stream of the whole result. Reads the chunks appended so far and waits for the next ones, until the
+     * result is finished.
+     *
+     * @return the stream, fails with an IOException if the result is closed before it is read
+     */
+    public InputStream openStream() {
+        return new InputStream() {
+            private int next;
+            private ByteBuffer current = ByteBuffer.allocate(0);
+
+            @Override
+            public int read() throws IOException {
+                return advance() ? current.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (!advance()) {
+                    return -1;
+                }
+                int read = Math.min(len, current.remaining());
+                current.get(b, off, read);
+                return read;
+            }
+
+            private boolean advance() throws IOException {
+                try {
+                    while (!current.hasRemaining()) {
+                        if (!awaitChunk(next)) {
+                            return false;
+                        }
+                        current = chunk(next++);
+                    }
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the result");
+                } catch (IllegalStateException | UncheckedIOException e) {
+                    throw new IOException("The result is not available", e);
+                }
+            }
+        };
+    }
+
+    public int chunkCount() {
+        lock.lock();
+        try {
+            return chunks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the result in bytes
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the chunks kept in memory, 0 once spilled to the file
+     */
+    public long memorySize() {
+        lock.lock();
+        try {
+            return memorySize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isSpilled() {
+        lock.lock();
+        try {
+            return file != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isFinished() {
+        lock.lock();
+        try {
+            return finished;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Releases the chunks in memory and deletes the file, if any.
+     */
+    @Override
+    public void close() {
+        FileChannel channel;
+        Path filePath;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            chunks.clear();
+            memorySize = 0;
+            channel = file;
+            filePath = path;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+                Files.deleteIfExists(filePath);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Deleting the result " + filePath + " failed", e);
+            }
+        }
+    }
+}
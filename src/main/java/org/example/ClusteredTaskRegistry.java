@@ -0,0 +1,539 @@
+package org.example;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A registry shared by a fixed set of nodes (replicas of the app), connected with plain TCP. No external services
+ * are needed, so a cluster can also be started within a single JVM, over the loopback interface.
+ * <p>
+ * The ownership of the tasks is partitioned by id: node i hands out the ids i, i + n, i + 2n... and only the owner
+ * of a task executes it. The owner publishes the start, progress (as coalesced by the {@link ProgressPublisher})
+ * and the completion or cancellation of its tasks to all other nodes, which keep a mirror {@link Task} of each
+ * remote task. The mirrors can be subscribed to like local tasks, their subscribers are notified when the owner's
+ * completion event arrives. Cancelling a mirror is forwarded to the owner.
+ * <p>
+ * Each node sends its events over its own outgoing connection to each other node, so the events of a node arrive
+ * in order. A node (re)connecting to another sends a snapshot of its running tasks first. Events for an
+ * unreachable node are dropped, and the mirrors of an unreachable node are cancelled, as there is no telling
+ * whether and when they will be completed.
+ * <p>
+ * Only connections from the addresses of the members are accepted. A connection must introduce its node first, and
+ * may only publish the tasks of that node and cancel the tasks of this node. The frames and strings are limited in
+ * size, a connection breaking these rules (e.g. a port scanner) is closed.
+ */
+public class ClusteredTaskRegistry implements TaskRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusteredTaskRegistry.class);
+
+    private static final byte HELLO = 1;
+    private static final byte STARTED = 2;
+    private static final byte PROGRESS = 3;
+    private static final byte COMPLETED = 4;
+    private static final byte CANCELLED = 5;
+    private static final byte CANCEL = 6;
+    private static final byte FAILED = 7;
+
+    /**
+     * Longer strings, e.g. huge results, are cut when sent, at most 3 bytes per char in UTF-8.
+     */
+    private static final int MAX_STRING_CHARS = 1 << 20;
+    private static final int MAX_STRING_BYTES = 3 * MAX_STRING_CHARS;
+    /**
+     * The type and the id, followed by at most one string and a few numbers.
+     */
+    private static final int MIN_FRAME_BYTES = 9;
+    private static final int MAX_FRAME_BYTES = MAX_STRING_BYTES + 64;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long RECONNECT_DELAY_MILLIS = 1000;
+
+    private final List<InetSocketAddress> members;
+    private final Set<InetAddress> memberAddresses;
+    private final int nodeIndex;
+    private final TaskClock clock;
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final Map<Long, Task> remoteTasks = new ConcurrentHashMap<>();
+    private final Peer[] peers;
+    /**
+     * The current incoming connection of each node, a stale connection closing must not drop the tasks that were
+     * re-sent over a newer one.
+     */
+    private final Map<Integer, Socket> incoming = new ConcurrentHashMap<>();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private volatile Owner owner;
+    private volatile boolean closed;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param members the addresses of all nodes of the cluster, in the same order on each node
+     * @param nodeIndex the index of this node in the members
+     * @param clock the zone of the start times of the tasks, sent as epoch milliseconds
+     */
+    public ClusteredTaskRegistry(List<InetSocketAddress> members, int nodeIndex, TaskClock clock) {
+        if (nodeIndex < 0 || nodeIndex >= members.size()) {
+            throw new IllegalArgumentException("Node index " + nodeIndex + " is not within the "
+                    + members.size() + " cluster members");
+        }
+        this.members = List.copyOf(members);
+        this.memberAddresses = members.stream()
+                .map(InetSocketAddress::getAddress)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toUnmodifiableSet());
+        this.nodeIndex = nodeIndex;
+        this.clock = clock;
+        this.peers = new Peer[members.size()];
+    }
+
+    /**
+     * @param members comma separated host:port pairs, e.g. "10.0.0.1:5701,10.0.0.2:5701"
+     * @return the addresses of the members
+     */
+    public static List<InetSocketAddress> parseMembers(String members) {
+        return Arrays.stream(members.split(","))
+                .map(String::trim)
+                .filter(member -> !member.isEmpty())
+                .map(member -> {
+                    int colon = member.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Cluster member " + member + " is not host:port");
+                    }
+                    return new InetSocketAddress(member.substring(0, colon),
+                            Integer.parseInt(member.substring(colon + 1)));
+                })
+                .toList();
+    }
+
+    @Override
+    public synchronized void start(Owner owner) {
+        this.owner = owner;
+        InetSocketAddress address = members.get(nodeIndex);
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.bind(address);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot listen for the other cluster members at " + address, e);
+        }
+        Thread.ofPlatform().name("task-registry-acceptor").daemon().start(this::accept);
+        for (int i = 0; i < peers.length; i++) {
+            if (i != nodeIndex) {
+                peers[i] = new Peer(members.get(i));
+                peers[i].thread = Thread.ofVirtual().name("task-registry-peer-" + i).start(peers[i]::run);
+            }
+        }
+        log.info("Task registry node {} of {} listening at {}", nodeIndex, members.size(), address);
+    }
+
+    @Override
+    public long newId() {
+        return nextSequence.getAndIncrement() * members.size() + nodeIndex;
+    }
+
+    @Override
+    public void reserveIds(long nextId) {
+        long nodes = members.size();
+        nextSequence.accumulateAndGet((nextId + nodes - 1) / nodes, Math::max);
+    }
+
+    @Override
+    public boolean isOwned(long id) {
+        return ownerOf(id) == nodeIndex;
+    }
+
+    private int ownerOf(long id) {
+        return (int) Math.floorMod(id, (long) members.size());
+    }
+
+    @Override
+    public void started(Task task) {
+        broadcast(startedMessage(task));
+        task.progress().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                // Already coalesced and rate limited by the publisher
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Double progress) {
+                broadcast(message(PROGRESS, task.id(), out -> out.writeDouble(progress)));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+    }
+
+    @Override
+    public void completed(long id, String result) {
+        broadcast(message(COMPLETED, id, out -> writeString(out, result)));
+    }
+
+    @Override
+    public void cancelled(long id) {
+        broadcast(message(CANCELLED, id, out -> {
+        }));
+    }
+
+    @Override
+    public void failed(long id, String error) {
+        broadcast(message(FAILED, id, out -> writeString(out, error)));
+    }
+
+    @Override
+    public Task getRemoteTask(long id) {
+        return remoteTasks.get(id);
+    }
+
+    @Override
+    public boolean cancelRemote(long id) {
+        Peer peer = peers[ownerOf(id)];
+        if (peer != null) {
+            peer.send(message(CANCEL, id, out -> {
+            }));
+        }
+        return remoteTasks.containsKey(id);
+    }
+
+    @Override
+    public Collection<Task> allTasks(Collection<Task> ownedTasks) {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<Task> iterator() {
+                return Stream.concat(ownedTasks.stream(), remoteTasks.values().stream()).iterator();
+            }
+
+            @Override
+            public int size() {
+                return ownedTasks.size() + remoteTasks.size();
+            }
+        };
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            log.debug("Failed to close the server socket", e);
+        }
+        for (Peer peer : peers) {
+            if (peer != null && peer.thread != null) {
+                // Interrupting a virtual thread blocked on a socket closes the socket
+                peer.thread.interrupt();
+            }
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void broadcast(byte[] message) {
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.send(message);
+            }
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (!memberAddresses.contains(socket.getInetAddress())) {
+                    log.warn("Refused a cluster connection from {}, not a member", socket.getRemoteSocketAddress());
+                    closeQuietly(socket);
+                    continue;
+                }
+                sockets.add(socket);
+                Thread.ofVirtual().name("task-registry-reader").start(() -> read(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    log.warn("Failed to accept a cluster connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the events of another node, until its connection closes.
+     */
+    private void read(Socket socket) {
+        int peer = -1;
+        try (socket; DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!closed) {
+                int length = in.readInt();
+                if (length < MIN_FRAME_BYTES || length > MAX_FRAME_BYTES) {
+                    throw new ProtocolException("Invalid frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                DataInputStream message = new DataInputStream(new ByteArrayInputStream(frame));
+                byte type = message.readByte();
+                long id = message.readLong();
+                if (type == HELLO) {
+                    // The first message of a connection, tells the index of the sending node instead of a task id
+                    if (peer >= 0 || !isMember(id, socket)) {
+                        throw new ProtocolException("Invalid introduction as node " + id);
+                    }
+                    peer = (int) id;
+                    incoming.put(peer, socket);
+                } else if (peer < 0) {
+                    log.debug("Dropped a message from {} before its introduction", socket.getRemoteSocketAddress());
+                } else {
+                    apply(peer, type, id, message);
+                }
+            }
+        } catch (ProtocolException e) {
+            log.warn("Closed the cluster connection from {}: {}", socket.getRemoteSocketAddress(), e.getMessage());
+        } catch (IOException e) {
+            if (!closed) {
+                log.debug("Connection from node {} closed", peer, e);
+            }
+        } finally {
+            sockets.remove(socket);
+            if (peer >= 0 && incoming.remove(peer, socket)) {
+                dropTasksOf(peer);
+            }
+        }
+    }
+
+    /**
+     * @return true if the given node is another member of the cluster, connecting from its address
+     */
+    private boolean isMember(long node, Socket socket) {
+        if (node < 0 || node >= members.size() || node == nodeIndex) {
+            return false;
+        }
+        InetAddress address = members.get((int) node).getAddress();
+        return address != null && address.equals(socket.getInetAddress());
+    }
+
+    private void apply(int peer, byte type, long id, DataInput message) throws IOException {
+        // A node only publishes its own tasks, and only asks this node to cancel the tasks of this node
+        if (ownerOf(id) != (type == CANCEL ? nodeIndex : peer)) {
+            log.debug("Dropped a message of type {} for task {} from node {}, not its owner", type, id, peer);
+            return;
+        }
+        switch (type) {
+            case STARTED -> {
+                String name = readString(message);
+                LocalDateTime start = LocalDateTime.ofInstant(Instant.ofEpochMilli(message.readLong()),
+                        clock.getZone());
+                int duration = message.readInt();
+                // Tasks are re-sent after reconnecting, keep the existing mirror and its subscribers
+                Task task = new Task(id, name, start, duration);
+                if (remoteTasks.putIfAbsent(id, task) == null) {
+                    owner.remoteChanged(new TaskEvent(TaskEvent.Type.ADDED, task));
+                }
+            }
+            case PROGRESS -> {
+                Task task = remoteTasks.get(id);
+                if (task != null) {
+                    task.reportProgress(message.readDouble());
+                }
+            }
+            case COMPLETED -> {
+                String result = readString(message);
+                // Like locally, the result is available before the task disappears from the running ones
+                owner.remoteCompleted(id, result);
+                Task task = remoteTasks.remove(id);
+                if (task != null) {
+                    task.complete(result);
+                    owner.remoteChanged(new TaskEvent(TaskEvent.Type.COMPLETED, task));
+                }
+            }
+            case CANCELLED -> {
+                Task task = remoteTasks.remove(id);
+                if (task != null) {
+                    task.cancel();
+                    owner.remoteChanged(new TaskEvent(TaskEvent.Type.REMOVED, task));
+                }
+            }
+            case FAILED -> {
+                String error = readString(message);
+                Task task = remoteTasks.remove(id);
+                if (task != null) {
+                    task.fail(new TaskFailedException(error));
+                    owner.remoteChanged(new TaskEvent(TaskEvent.Type.REMOVED, task));
+                }
+            }
+            case CANCEL -> owner.cancel(id);
+            default -> throw new ProtocolException("Unknown message type " + type);
+        }
+    }
+
+    private void dropTasksOf(int peer) {
+        for (Task task : remoteTasks.values()) {
+            if (ownerOf(task.id()) == peer && remoteTasks.remove(task.id(), task)) {
+                task.cancel();
+                owner.remoteChanged(new TaskEvent(TaskEvent.Type.REMOVED, task));
+            }
+        }
+        log.info("Lost the connection from node {}, its tasks were cancelled on this node", peer);
+    }
+
+    private byte[] startedMessage(Task task) {
+        return message(STARTED, task.id(), out -> {
+            writeString(out, task.name());
+            out.writeLong(task.start().atZone(clock.getZone()).toInstant().toEpochMilli());
+            out.writeInt(task.duration());
+        });
+    }
+
+    private interface MessageBody {
+        void write(DataOutput out) throws IOException;
+    }
+
+    private static byte[] message(byte type, long id, MessageBody body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            out.writeLong(id);
+            body.write(out);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeString(DataOutput out, String string) throws IOException {
+        // Not writeUTF, it is limited to 64kB. Cut to fit the frames accepted by the other nodes
+        if (string.length() > MAX_STRING_CHARS) {
+            string = string.substring(0, MAX_STRING_CHARS);
+        }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new ProtocolException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * The outgoing connection to another node. Messages are queued, so a slow or unreachable node never blocks the
+     * thread publishing an event.
+     */
+    private class Peer {
+
+        private final InetSocketAddress address;
+        private final BlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>();
+        private volatile boolean connected;
+        private Thread thread;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void send(byte[] message) {
+            // While disconnected the events are dropped, the snapshot sent when reconnecting replaces them
+            if (connected) {
+                outbox.add(message);
+            }
+        }
+
+        void run() {
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    socket.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    // Accept events before taking the snapshot, so none are lost in between. The snapshot and
+                    // the queued events may overlap, receivers ignore the duplicates.
+                    connected = true;
+                    writeFrame(out, message(HELLO, nodeIndex, o -> {
+                    }));
+                    for (Task task : owner.ownedTasks()) {
+                        writeFrame(out, startedMessage(task));
+                    }
+                    out.flush();
+                    while (!closed) {
+                        writeFrame(out, outbox.take());
+                        // Write the events queued meanwhile with a single flush
+                        byte[] message;
+                        while ((message = outbox.poll()) != null) {
+                            writeFrame(out, message);
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    log.debug("Connection to {} failed", address, e);
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    outbox.clear();
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void writeFrame(DataOutputStream out, byte[] message) throws IOException {
+            out.writeInt(message.length);
+            out.write(message);
+        }
+    }
+}
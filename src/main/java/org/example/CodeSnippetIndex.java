@@ -0,0 +1,192 @@
+package org.example;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * An index of the code snippets shown in the views: the parts of the sources between "// CodeSnippet: anchor" and
+ * "// CodeSnippetEnd: anchor" comments, dedented and highlighted to HTML. The views share the HTML strings, so
+ * showing a snippet costs no I/O, parsing or highlighting per view instance, and no highlighting in the browser.
+ * <p>
+ * The snippets are extracted at build time by {@link CodeSnippetIndexer} to a bundle, loaded at startup, so the
+ * sources don't need to be shipped. When the bundle is not available, e.g. when the app is started from an IDE
+ * without the Maven build, the snippets are extracted from the sources in src/main/java on their first use.
+ */
+public final class CodeSnippetIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(CodeSnippetIndex.class);
+
+    /**
+     * The classpath resource of the snippet bundle written by {@link CodeSnippetIndexer}.
+     */
+    static final String BUNDLE = "org/example/code-snippets.bin";
+
+    private static final String START_MARKER = "// CodeSnippet: ";
+    private static final String END_MARKER = "// CodeSnippetEnd: ";
+    private static final Path SOURCES = Path.of("src", "main", "java");
+
+    private static final CodeSnippetIndex INSTANCE = new CodeSnippetIndex();
+
+    /**
+     * The snippets by key, see {@link #key(String, String)}.
+     */
+    private final Map<String, String> snippets = new ConcurrentHashMap<>();
+    /**
+     * The sources read in development mode, by class name.
+     */
+    private final Map<String, List<String>> sources = new ConcurrentHashMap<>();
+    private volatile boolean bundleLoaded;
+
+    private CodeSnippetIndex() {
+    }
+
+    public static CodeSnippetIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param clazz the class
+     * @param anchor the anchor of the snippet
+     * @return the highlighted HTML of the snippet
+     * @throws IllegalArgumentException if there is no such snippet
+     */
+    public String getSnippet(Class<?> clazz, String anchor) {
+        loadBundle();
+        String html = snippets.get(key(clazz.getName(), anchor));
+        if (html == null && !bundleLoaded) {
+            parseSnippets(source(clazz)).forEach((a, h) -> snippets.putIfAbsent(key(clazz.getName(), a), h));
+            html = snippets.get(key(clazz.getName(), anchor));
+        }
+        if (html == null) {
+            throw new IllegalArgumentException("Anchor not found: " + anchor);
+        }
+        return html;
+    }
+
+    /**
+     * Highlights the given lines of a class. Only available in development mode, with the sources in
+     * src/main/java, use anchors instead.
+     *
+     * @param clazz the class
+     * @param startLine the first line of the snippet, 1 based
+     * @param endLine the last line of the snippet
+     * @return the highlighted HTML of the lines
+     */
+    public String getSnippet(Class<?> clazz, int startLine, int endLine) {
+        return snippets.computeIfAbsent(key(clazz.getName(), startLine + "-" + endLine),
+                key -> toHtml(source(clazz).subList(startLine - 1, endLine)));
+    }
+
+    private List<String> source(Class<?> clazz) {
+        return sources.computeIfAbsent(clazz.getName(), name -> {
+            Path file = SOURCES.resolve(name.replace('.', '/') + ".java");
+            if (!Files.exists(file)) {
+                throw new IllegalArgumentException("No snippets bundled for " + name + " and no source at "
+                        + file.toAbsolutePath());
+            }
+            try {
+                return Files.readAllLines(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Loads the snippets extracted at build time, if available.
+     */
+    synchronized void loadBundle() {
+        if (bundleLoaded) {
+            return;
+        }
+        InputStream resource = CodeSnippetIndex.class.getClassLoader().getResourceAsStream(BUNDLE);
+        if (resource == null) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(resource)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                byte[] html = new byte[in.readInt()];
+                in.readFully(html);
+                snippets.put(key, new String(html, StandardCharsets.UTF_8));
+            }
+            bundleLoaded = true;
+            log.debug("Loaded {} code snippets", count);
+        } catch (IOException e) {
+            // Falls back to the sources, if available
+            log.warn("Failed to load the code snippets from {}", BUNDLE, e);
+        }
+    }
+
+    static String key(String className, String anchor) {
+        return className + "#" + anchor;
+    }
+
+    /**
+     * @param lines the lines of a source file
+     * @return the highlighted HTML of the snippets of the file, by anchor
+     */
+    static Map<String, String> parseSnippets(List<String> lines) {
+        Map<String, Integer> starts = new HashMap<>();
+        Map<String, String> snippets = new HashMap<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.startsWith(START_MARKER)) {
+                starts.putIfAbsent(line.substring(START_MARKER.length()).trim(), i + 1);
+            } else if (line.startsWith(END_MARKER)) {
+                String anchor = line.substring(END_MARKER.length()).trim();
+                Integer start = starts.get(anchor);
+                if (start != null && !snippets.containsKey(anchor)) {
+                    snippets.put(anchor, toHtml(lines.subList(start, i)));
+                }
+            }
+        }
+        return snippets;
+    }
+
+    /**
+     * Removes the indentation of the first line from all lines and highlights them.
+     */
+    private static String toHtml(List<String> lines) {
+        if (lines.isEmpty()) {
+            return JavaHighlighter.highlight("");
+        }
+        String first = lines.getFirst();
+        int indentation = first.length() - first.stripLeading().length();
+        List<String> dedented = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            dedented.add(line.length() > indentation ? line.substring(indentation) : line);
+        }
+        return JavaHighlighter.highlight(String.join("\n", dedented));
+    }
+
+    /**
+     * Loads the snippets when the app starts, instead of during the first requests.
+     */
+    @Component
+    static class Loader {
+
+        @PostConstruct
+        void loadSnippets() {
+            INSTANCE.loadBundle();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.example;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Extracts and highlights the code snippets of the sources at build time, to the bundle loaded by
+ * {@link CodeSnippetIndex}. Run by the Maven build in the process-classes phase.
+ * <p>
+ * The bundle is a gzipped list of (class#anchor, HTML) pairs, sorted by key so that the output only changes when
+ * the snippets change.
+ */
+public class CodeSnippetIndexer {
+
+    /**
+     * @param args the source directory and the output directory (e.g. target/classes)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            throw new IllegalArgumentException("Usage: CodeSnippetIndexer <source directory> <output directory>");
+        }
+        Path sourceDirectory = Path.of(args[0]);
+        Path bundle = Path.of(args[1]).resolve(CodeSnippetIndex.BUNDLE);
+
+        Map<String, String> snippets = new TreeMap<>();
+        try (Stream<Path> files = Files.walk(sourceDirectory)) {
+            for (Path file : files.filter(f -> f.toString().endsWith(".java")).toList()) {
+                String relative = sourceDirectory.relativize(file).toString();
+                String className = relative.substring(0, relative.length() - ".java".length())
+                        .replace(File.separatorChar, '.');
+                List<String> lines = Files.readAllLines(file);
+                CodeSnippetIndex.parseSnippets(lines)
+                        .forEach((anchor, html) -> snippets.put(CodeSnippetIndex.key(className, anchor), html));
+            }
+        }
+
+        Files.createDirectories(bundle.getParent());
+        try (OutputStream file = Files.newOutputStream(bundle);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(file)))) {
+            out.writeInt(snippets.size());
+            for (Map.Entry<String, String> snippet : snippets.entrySet()) {
+                out.writeUTF(snippet.getKey());
+                byte[] html = snippet.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(html.length);
+                out.write(html);
+            }
+        }
+        System.out.println("Wrote " + snippets.size() + " code snippets to " + bundle);
+    }
+}
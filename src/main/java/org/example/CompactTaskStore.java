@@ -0,0 +1,441 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * The scheduled tasks of the compact storage of {@link AppWideTasks}, in primitive arrays instead of {@link Task}
+ * objects: the fields of a task are kept at the same index (its slot) of arrays per field, the deadlines in a binary
+ * heap of slots and the ids in an open addressing hash table. A task takes less than 100 bytes, and a name is
+ * stored only once, no matter how many tasks have it.
+ * <p>
+ * A {@link Task} object is materialized only when asked for, and kept (e.g. with its subscribers) until the task is
+ * removed. All access is guarded by a lock, iteration copies the tasks in chunks to not hold it for long.
+ */
+final class CompactTaskStore implements Iterable<CompactTaskStore.Entry> {
+
+    private static final int CHUNK = 1024;
+
+    /**
+     * A copy of the fields of a stored task.
+     *
+     * @param deadline the deadline, in the nanoseconds of the {@link TaskClock}
+     * @param task the materialized task, or null if not materialized
+     */
+    record Entry(long id, String name, long startEpochMillis, int duration, long deadline, Task task) {
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when the task due next changes, wakes up {@link #awaitDue(TaskClock)}.
+     */
+    private final Condition headChanged = lock.newCondition();
+
+    // The fields of the tasks by slot, the slots 0 to size - 1 are used
+    private long[] ids = new long[16];
+    private long[] starts = new long[16];
+    private long[] deadlines = new long[16];
+    private int[] durations = new int[16];
+    private int[] nameIds = new int[16];
+    private Task[] tasks = new Task[16];
+    /**
+     * The position of each slot in the heap.
+     */
+    private int[] heapPositions = new int[16];
+    private int size;
+
+    /**
+     * The slots by deadline, the head is the task due next.
+     */
+    private int[] heap = new int[16];
+
+    // Slots by id, open addressing with linear probing, -1 for an empty bucket
+    private long[] idKeys = new long[32];
+    private int[] idSlots = filled(32);
+
+    // The names by name id with a reference count, the unused name ids are reused
+    private String[] names = new String[16];
+    private int[] nameRefs = new int[16];
+    private final Map<String, Integer> nameIdsByName = new HashMap<>();
+    private int[] freeNameIds = new int[16];
+    private int freeNameCount;
+    private int nameCount;
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param task the materialized task, or null to materialize it only when asked for
+     */
+    void add(long id, String name, long startEpochMillis, int duration, long deadline, Task task) {
+        lock.lock();
+        try {
+            if (findBucket(id) >= 0) {
+                throw new IllegalArgumentException("Task " + id + " is already stored");
+            }
+            if (size == ids.length) {
+                grow();
+            }
+            int slot = size++;
+            ids[slot] = id;
+            starts[slot] = startEpochMillis;
+            deadlines[slot] = deadline;
+            durations[slot] = duration;
+            nameIds[slot] = acquireName(name);
+            tasks[slot] = task;
+            putSlot(id, slot);
+            heap[slot] = slot;
+            heapPositions[slot] = slot;
+            siftUp(slot);
+            if (heap[0] == slot) {
+                headChanged.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean contains(long id) {
+        lock.lock();
+        try {
+            return findBucket(id) >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the materialized task, materializing it if needed.
+     *
+     * @param id the id of the task
+     * @param factory creates the task, called with the lock held
+     * @return the task, or null if there is no such task
+     */
+    Task materialize(long id, Function<Entry, Task> factory) {
+        lock.lock();
+        try {
+            int bucket = findBucket(id);
+            if (bucket < 0) {
+                return null;
+            }
+            int slot = idSlots[bucket];
+            if (tasks[slot] == null) {
+                tasks[slot] = factory.apply(entry(slot));
+            }
+            return tasks[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param id the id of the task
+     * @return the removed task, or null if there was no such task
+     */
+    Entry remove(long id) {
+        return remove(id, Function.identity());
+    }
+
+    /**
+     * @param id the id of the task
+     * @param removing called with the task to remove, with the lock held: before other threads can see the removal
+     * @return the result of removing, or null if there was no such task
+     */
+    <T> T remove(long id, Function<Entry, T> removing) {
+        lock.lock();
+        try {
+            int bucket = findBucket(id);
+            if (bucket < 0) {
+                return null;
+            }
+            int slot = idSlots[bucket];
+            T removed = removing.apply(entry(slot));
+            removeBucket(bucket);
+            boolean head = heapPositions[slot] == 0;
+            int last = --size;
+            removeFromHeap(slot);
+            releaseName(nameIds[slot]);
+            // Keeps the slots dense: the last slot moves into the removed one
+            if (slot != last) {
+                moveSlot(last, slot);
+            }
+            tasks[last] = null;
+            if (head) {
+                headChanged.signalAll();
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param now the current time, in the nanoseconds of the {@link TaskClock}
+     * @return the task due next, if its deadline has passed, otherwise null
+     */
+    Entry peekDue(long now) {
+        lock.lock();
+        try {
+            return size > 0 && deadlines[heap[0]] <= now ? entry(heap[0]) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sleeps until the deadline of a task has passed, waking up when a task with an earlier deadline is added.
+     */
+    void awaitDue(TaskClock clock) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (size == 0) {
+                    headChanged.await();
+                    continue;
+                }
+                long remaining = deadlines[heap[0]] - clock.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                headChanged.await(remaining, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Iterates copies of the tasks, weakly consistent: tasks added or removed during the iteration may or may not
+     * be returned, and a removal may cause a task to be skipped.
+     */
+    @Override
+    public Iterator<Entry> iterator() {
+        return new Iterator<>() {
+            private final List<Entry> chunk = new ArrayList<>(CHUNK);
+            private int nextSlot;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                if (index < chunk.size()) {
+                    return true;
+                }
+                chunk.clear();
+                index = 0;
+                lock.lock();
+                try {
+                    for (; nextSlot < size && chunk.size() < CHUNK; nextSlot++) {
+                        chunk.add(entry(nextSlot));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                return !chunk.isEmpty();
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk.get(index++);
+            }
+        };
+    }
+
+    Stream<Entry> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    private Entry entry(int slot) {
+        return new Entry(ids[slot], names[nameIds[slot]], starts[slot], durations[slot], deadlines[slot], tasks[slot]);
+    }
+
+    private void grow() {
+        int capacity = ids.length + (ids.length >> 1);
+        ids = Arrays.copyOf(ids, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        deadlines = Arrays.copyOf(deadlines, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        nameIds = Arrays.copyOf(nameIds, capacity);
+        tasks = Arrays.copyOf(tasks, capacity);
+        heapPositions = Arrays.copyOf(heapPositions, capacity);
+        heap = Arrays.copyOf(heap, capacity);
+        if (capacity * 2 > idKeys.length) {
+            rehash(Integer.highestOneBit(capacity) * 4);
+        }
+    }
+
+    private void moveSlot(int from, int to) {
+        ids[to] = ids[from];
+        starts[to] = starts[from];
+        deadlines[to] = deadlines[from];
+        durations[to] = durations[from];
+        nameIds[to] = nameIds[from];
+        tasks[to] = tasks[from];
+        heapPositions[to] = heapPositions[from];
+        heap[heapPositions[to]] = to;
+        idSlots[findBucket(ids[to])] = to;
+    }
+
+    // The deadline heap
+
+    private void siftUp(int position) {
+        int slot = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (deadlines[heap[parent]] <= deadlines[slot]) {
+                break;
+            }
+            place(heap[parent], position);
+            position = parent;
+        }
+        place(slot, position);
+    }
+
+    private void siftDown(int position) {
+        int slot = heap[position];
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            if (child + 1 < size && deadlines[heap[child + 1]] < deadlines[heap[child]]) {
+                child++;
+            }
+            if (deadlines[slot] <= deadlines[heap[child]]) {
+                break;
+            }
+            place(heap[child], position);
+            position = child;
+        }
+        place(slot, position);
+    }
+
+    private void place(int slot, int position) {
+        heap[position] = slot;
+        heapPositions[slot] = position;
+    }
+
+    /**
+     * Called after the size is decremented, the last position of the heap moves into the removed one.
+     */
+    private void removeFromHeap(int slot) {
+        int position = heapPositions[slot];
+        if (position != size) {
+            int moved = heap[size];
+            place(moved, position);
+            siftDown(position);
+            if (heap[position] == moved) {
+                siftUp(position);
+            }
+        }
+    }
+
+    // The id table
+
+    private int bucketOf(long id) {
+        long hash = id * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (idKeys.length - 1);
+    }
+
+    private int findBucket(long id) {
+        int mask = idKeys.length - 1;
+        for (int bucket = bucketOf(id); idSlots[bucket] >= 0; bucket = (bucket + 1) & mask) {
+            if (idKeys[bucket] == id) {
+                return bucket;
+            }
+        }
+        return -1;
+    }
+
+    private void putSlot(long id, int slot) {
+        int mask = idKeys.length - 1;
+        int bucket = bucketOf(id);
+        while (idSlots[bucket] >= 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        idKeys[bucket] = id;
+        idSlots[bucket] = slot;
+    }
+
+    /**
+     * Empties a bucket, shifting back the following entries of the probe sequence, so no tombstones are needed.
+     */
+    private void removeBucket(int bucket) {
+        int mask = idKeys.length - 1;
+        int empty = bucket;
+        for (int next = (bucket + 1) & mask; idSlots[next] >= 0; next = (next + 1) & mask) {
+            int home = bucketOf(idKeys[next]);
+            // Moved back unless its home bucket lies cyclically after the empty bucket
+            if (((next - home) & mask) >= ((next - empty) & mask)) {
+                idKeys[empty] = idKeys[next];
+                idSlots[empty] = idSlots[next];
+                empty = next;
+            }
+        }
+        idSlots[empty] = -1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = idKeys;
+        int[] oldSlots = idSlots;
+        idKeys = new long[capacity];
+        idSlots = filled(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSlots[i] >= 0) {
+                putSlot(oldKeys[i], oldSlots[i]);
+            }
+        }
+    }
+
+    private static int[] filled(int capacity) {
+        int[] slots = new int[capacity];
+        Arrays.fill(slots, -1);
+        return slots;
+    }
+
+    // The names
+
+    private int acquireName(String name) {
+        Integer nameId = nameIdsByName.get(name);
+        if (nameId == null) {
+            nameId = freeNameCount > 0 ? freeNameIds[--freeNameCount] : nameCount++;
+            if (nameId == names.length) {
+                names = Arrays.copyOf(names, nameId + (nameId >> 1));
+                nameRefs = Arrays.copyOf(nameRefs, names.length);
+            }
+            names[nameId] = name;
+            nameIdsByName.put(name, nameId);
+        }
+        nameRefs[nameId]++;
+        return nameId;
+    }
+
+    private void releaseName(int nameId) {
+        if (--nameRefs[nameId] > 0) {
+            return;
+        }
+        nameIdsByName.remove(names[nameId]);
+        names[nameId] = null;
+        if (freeNameCount == freeNameIds.length) {
+            freeNameIds = Arrays.copyOf(freeNameIds, freeNameCount + (freeNameCount >> 1));
+        }
+        freeNameIds[freeNameCount++] = nameId;
+    }
+}
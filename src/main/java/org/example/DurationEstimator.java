@@ -0,0 +1,166 @@
+package org.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns how long operations take (e.g. the jobs of a given name) from their completion times, so that progress bars
+ * and estimated durations can use estimates instead of hard coded guesses.
+ * <p>
+ * The durations of an operation are kept in a streaming histogram of logarithmic buckets, about 9% wide, so the
+ * memory per operation is constant, no matter how many durations are recorded. Older durations are decayed: a
+ * duration weighs half as much after half-life newer ones, so the estimates follow changes in the load. The number
+ * of operations is bounded too, the least recently used ones are evicted.
+ */
+@Component
+public class DurationEstimator {
+
+    /**
+     * Durations needed before anything is estimated.
+     */
+    private static final int MIN_SAMPLES = 3;
+
+    private final Cache<String, Histogram> histograms;
+    private final TaskClock clock;
+    /**
+     * The weight of each duration relative to the previous one.
+     */
+    private final double growth;
+
+    public DurationEstimator(@Value("${tasks.estimates.half-life:50}") int halfLife,
+                             @Value("${tasks.estimates.max-operations:1000}") long maxOperations,
+                             TaskClock clock, MeterRegistry meterRegistry) {
+        this.clock = clock;
+        this.growth = Math.pow(2, 1.0 / halfLife);
+        Cache<String, Histogram> cache = Caffeine.newBuilder()
+                .maximumSize(maxOperations)
+                .recordStats()
+                .build();
+        this.histograms = CaffeineCacheMetrics.monitor(meterRegistry, cache, "duration-estimates");
+    }
+
+    /**
+     * @param operation the operation, e.g. the name of a job
+     * @param millis how long the operation took
+     */
+    public void record(String operation, long millis) {
+        histograms.get(operation, o -> new Histogram()).record(millis, growth);
+    }
+
+    /**
+     * Records how long the given future takes to complete normally, from now. Failed and cancelled operations are
+     * not recorded.
+     *
+     * @param operation the operation
+     * @param future the future of the operation
+     * @return the given future
+     */
+    public <T> CompletableFuture<T> time(String operation, CompletableFuture<T> future) {
+        long start = clock.nanoTime();
+        future.whenComplete((result, error) -> {
+            if (error == null) {
+                record(operation, TimeUnit.NANOSECONDS.toMillis(clock.nanoTime() - start));
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @param operation the operation
+     * @return the estimated durations of the operation, or empty if it has not been recorded often enough
+     */
+    public Optional<Estimate> getEstimate(String operation) {
+        Histogram histogram = histograms.getIfPresent(operation);
+        return histogram == null ? Optional.empty() : histogram.estimate();
+    }
+
+    /**
+     * @param operation the operation
+     * @param quantile the share of the operations, e.g. 0.95
+     * @return the duration within which the given share of the recent operations completed, or empty if the
+     * operation has not been recorded often enough
+     */
+    public OptionalLong getQuantile(String operation, double quantile) {
+        Histogram histogram = histograms.getIfPresent(operation);
+        return histogram == null ? OptionalLong.empty() : histogram.quantileOf(quantile);
+    }
+
+    /**
+     * @param p50Millis the median duration, half of the recent operations completed faster
+     * @param p90Millis 90% of the recent operations completed faster
+     */
+    public record Estimate(long p50Millis, long p90Millis) {
+    }
+
+    private static final class Histogram {
+
+        private static final int BUCKETS_PER_DOUBLING = 8;
+        /**
+         * Up to 2^27 ms, about 37 hours, longer durations are counted in the last bucket.
+         */
+        private static final int DOUBLINGS = 27;
+
+        // Bucket 0 is for durations under a millisecond, bucket i for 2^((i - 1) / 8) ms and up
+        private final double[] weights = new double[1 + DOUBLINGS * BUCKETS_PER_DOUBLING];
+        private double total;
+        private double nextWeight = 1;
+        private int samples;
+
+        synchronized void record(long millis, double growth) {
+            weights[bucket(millis)] += nextWeight;
+            total += nextWeight;
+            samples++;
+            // Instead of decaying all the older weights, the newer ones grow. Rescaled before they overflow
+            nextWeight *= growth;
+            if (nextWeight > 1e100) {
+                for (int i = 0; i < weights.length; i++) {
+                    weights[i] /= nextWeight;
+                }
+                total /= nextWeight;
+                nextWeight = 1;
+            }
+        }
+
+        synchronized Optional<Estimate> estimate() {
+            if (samples < MIN_SAMPLES) {
+                return Optional.empty();
+            }
+            return Optional.of(new Estimate(quantile(0.5), quantile(0.9)));
+        }
+
+        synchronized OptionalLong quantileOf(double quantile) {
+            return samples < MIN_SAMPLES ? OptionalLong.empty() : OptionalLong.of(quantile(quantile));
+        }
+
+        private long quantile(double quantile) {
+            double rank = quantile * total;
+            double seen = 0;
+            for (int i = 0; i < weights.length; i++) {
+                if (weights[i] > 0 && seen + weights[i] >= rank) {
+                    // Interpolated within the bucket, on the logarithmic scale
+                    double fraction = (rank - seen) / weights[i];
+                    return i == 0 ? 0 : Math.round(Math.pow(2, (i - 1 + fraction) / BUCKETS_PER_DOUBLING));
+                }
+                seen += weights[i];
+            }
+            return Math.round(Math.pow(2, DOUBLINGS));
+        }
+
+        private int bucket(long millis) {
+            if (millis < 1) {
+                return 0;
+            }
+            double doublings = Math.log(millis) / Math.log(2);
+            return Math.min(weights.length - 1, 1 + (int) (doublings * BUCKETS_PER_DOUBLING));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package org.example;
+
+import java.util.List;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Hedges asynchronous calls to cut their tail latency: if a call has not completed within an adaptive delay, a
+ * percentile (e.g. p95) of the recent durations of the same operation, a duplicate call is started. The first
+ * attempt to complete wins, the other one is cancelled with cancel(true). The calls must thus be idempotent. A
+ * failed attempt fails the call only if no other attempt is running, a hedge still running may succeed.
+ * <p>
+ * A budget caps the extra load: each call earns a fraction of a hedge (e.g. 0.1 for at most 10% extra calls), and
+ * a hedge is only started if a whole one has been earned. At most {@link #MAX_SAVED_HEDGES} are saved up, so a
+ * burst of slow calls after a quiet period can't double the load.
+ * <p>
+ * The durations are learned with a {@link DurationEstimator}. The losers are recorded with their duration until
+ * cancelled, a lower bound, so the slow calls cut short by hedging keep the percentile from drifting down.
+ *
+ * @param <V> the type of the results
+ */
+public class Hedger<V> {
+
+    public static final int MAX_SAVED_HEDGES = 10;
+
+    // In thousandths of a hedge
+    private static final long HEDGE = 1000;
+
+    private final DurationEstimator estimator;
+    private final double quantile;
+    private final long earnedPerCall;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong budget = new AtomicLong();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgesWon = new LongAdder();
+    private final LongAdder hedgesDenied = new LongAdder();
+
+    /**
+     * @param estimator learns the durations of the operations
+     * @param quantile the percentile of the durations after which a call is hedged, e.g. 0.95
+     * @param budget the share of the calls that may be hedged, e.g. 0.1
+     * @param scheduler starts the hedges, the hedged calls themselves should not run in it
+     */
+    public Hedger(DurationEstimator estimator, double quantile, double budget, ScheduledExecutorService scheduler) {
+        this.estimator = estimator;
+        this.quantile = quantile;
+        this.earnedPerCall = Math.round(budget * HEDGE);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Executes the call, and a duplicate of it if it is slower than usual. Not hedged until the operation has been
+     * completed a few times.
+     *
+     * @param operation identifies calls with the same distribution of durations, e.g. the method and parameters
+     * @param call starts an attempt of the call
+     * @return a future for the result of the first completed attempt. Cancelling it cancels all attempts.
+     */
+    public CompletableFuture<V> execute(String operation, Supplier<CompletableFuture<V>> call) {
+        calls.increment();
+        budget.accumulateAndGet(earnedPerCall,
+                (saved, earned) -> Math.min(MAX_SAVED_HEDGES * HEDGE, saved + earned));
+        CompletableFuture<V> result = new CompletableFuture<>();
+        List<CompletableFuture<V>> attempts = new CopyOnWriteArrayList<>();
+        AtomicInteger running = new AtomicInteger();
+        attempt(operation, call, result, attempts, running, false);
+        OptionalLong delay = estimator.getQuantile(operation, quantile);
+        if (delay.isPresent() && !result.isDone()) {
+            ScheduledFuture<?> hedge = scheduler.schedule(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                if (!spendHedge()) {
+                    hedgesDenied.increment();
+                    return;
+                }
+                hedges.increment();
+                attempt(operation, call, result, attempts, running, true);
+            }, Math.max(1, delay.getAsLong()), TimeUnit.MILLISECONDS);
+            result.whenComplete((value, error) -> hedge.cancel(false));
+        }
+        // Completed by the winner or cancelled by the caller, the other attempts are not needed any more
+        result.whenComplete((value, error) -> attempts.forEach(attempt -> attempt.cancel(true)));
+        return result;
+    }
+
+    private void attempt(String operation, Supplier<CompletableFuture<V>> call, CompletableFuture<V> result,
+                         List<CompletableFuture<V>> attempts, AtomicInteger running, boolean hedge) {
+        long start = System.nanoTime();
+        // Counted before starting, so a failure of the other attempt meanwhile waits for this one
+        running.incrementAndGet();
+        CompletableFuture<V> attempt;
+        try {
+            attempt = call.get();
+        } catch (RuntimeException e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        attempts.add(attempt);
+        attempt.whenComplete((value, error) -> {
+            boolean last = running.decrementAndGet() == 0;
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            if (error == null) {
+                estimator.record(operation, millis);
+                if (result.complete(value) && hedge) {
+                    hedgesWon.increment();
+                }
+            } else if (result.isDone()) {
+                if (!result.isCancelled()) {
+                    // The loser, cancelled at least this long after it started
+                    estimator.record(operation, millis);
+                }
+            } else if (last) {
+                // The hedge not started yet is cancelled with the result
+                result.completeExceptionally(error);
+            }
+        });
+        if (result.isDone()) {
+            // Completed (or cancelled) while this attempt was being started
+            attempt.cancel(true);
+        }
+    }
+
+    private boolean spendHedge() {
+        while (true) {
+            long saved = budget.get();
+            if (saved < HEDGE) {
+                return false;
+            }
+            if (budget.compareAndSet(saved, saved - HEDGE)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of calls executed
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of duplicate calls started, the hedge rate is this per {@link #getCalls()}
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return the number of hedges that completed before the original call
+     */
+    public long getHedgesWon() {
+        return hedgesWon.sum();
+    }
+
+    /**
+     * @return the number of hedges not started as the budget was used up
+     */
+    public long getHedgesDenied() {
+        return hedgesDenied.sum();
+    }
+}
@@ -0,0 +1,114 @@
+package org.example;
+
+import java.util.Set;
+
+/**
+ * A minimal syntax highlighter for Java, producing HTML with the CSS classes of highlight.js (hljs-keyword,
+ * hljs-string...), so that any highlight.js theme can be used for the styles. Good enough for the snippets in this
+ * app, it only tokenizes comments, strings, annotations, numbers and keywords.
+ */
+final class JavaHighlighter {
+
+    private static final Set<String> KEYWORDS = Set.of(
+            "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+            "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float", "for",
+            "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native", "new",
+            "package", "private", "protected", "public", "record", "return", "short", "static", "strictfp", "super",
+            "switch", "synchronized", "this", "throw", "throws", "transient", "try", "var", "void", "volatile",
+            "while", "yield");
+
+    private static final Set<String> LITERALS = Set.of("true", "false", "null");
+
+    private JavaHighlighter() {
+    }
+
+    /**
+     * @param code Java code
+     * @return the code as HTML, within a code element with the hljs classes
+     */
+    static String highlight(String code) {
+        StringBuilder html = new StringBuilder(code.length() * 2).append("<code class=\"hljs language-java\">");
+        int length = code.length();
+        int i = 0;
+        while (i < length) {
+            char c = code.charAt(i);
+            char next = i + 1 < length ? code.charAt(i + 1) : 0;
+            int end;
+            if (c == '/' && next == '/') {
+                end = endOf(code, code.indexOf('\n', i), 0);
+                span(html, "hljs-comment", code, i, end);
+            } else if (c == '/' && next == '*') {
+                end = endOf(code, code.indexOf("*/", i + 2), 2);
+                span(html, "hljs-comment", code, i, end);
+            } else if (code.startsWith("\"\"\"", i)) {
+                end = endOf(code, code.indexOf("\"\"\"", i + 3), 3);
+                span(html, "hljs-string", code, i, end);
+            } else if (c == '"' || c == '\'') {
+                end = i + 1;
+                while (end < length && code.charAt(end) != c && code.charAt(end) != '\n') {
+                    // Skip escaped characters, e.g. \"
+                    end += code.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(length, end + 1);
+                span(html, "hljs-string", code, i, end);
+            } else if (c == '@' && Character.isJavaIdentifierStart(next)) {
+                end = identifierEnd(code, i + 1);
+                span(html, "hljs-meta", code, i, end);
+            } else if (Character.isDigit(c)) {
+                end = i + 1;
+                while (end < length && (Character.isLetterOrDigit(code.charAt(end)) || code.charAt(end) == '_'
+                        || code.charAt(end) == '.' && end + 1 < length && Character.isDigit(code.charAt(end + 1)))) {
+                    end++;
+                }
+                span(html, "hljs-number", code, i, end);
+            } else if (Character.isJavaIdentifierStart(c)) {
+                end = identifierEnd(code, i);
+                String word = code.substring(i, end);
+                if (KEYWORDS.contains(word)) {
+                    span(html, "hljs-keyword", code, i, end);
+                } else if (LITERALS.contains(word)) {
+                    span(html, "hljs-literal", code, i, end);
+                } else {
+                    escape(html, code, i, end);
+                }
+            } else {
+                end = i + 1;
+                escape(html, code, i, end);
+            }
+            i = end;
+        }
+        return html.append("</code>").toString();
+    }
+
+    private static int endOf(String code, int index, int delimiterLength) {
+        // An unterminated comment or string continues to the end of the snippet
+        return index < 0 ? code.length() : index + delimiterLength;
+    }
+
+    private static int identifierEnd(String code, int start) {
+        int end = start;
+        while (end < code.length() && Character.isJavaIdentifierPart(code.charAt(end))) {
+            end++;
+        }
+        return end;
+    }
+
+    private static void span(StringBuilder html, String cssClass, String code, int start, int end) {
+        html.append("<span class=\"").append(cssClass).append("\">");
+        escape(html, code, start, end);
+        html.append("</span>");
+    }
+
+    private static void escape(StringBuilder html, String code, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = code.charAt(i);
+            switch (c) {
+                case '&' -> html.append("&amp;");
+                case '<' -> html.append("&lt;");
+                case '>' -> html.append("&gt;");
+                case '"' -> html.append("&quot;");
+                default -> html.append(c);
+            }
+        }
+    }
+}
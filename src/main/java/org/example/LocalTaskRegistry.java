@@ -0,0 +1,71 @@
+package org.example;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The registry of a single node: all tasks are owned by this JVM, so there is nothing to publish.
+ */
+public class LocalTaskRegistry implements TaskRegistry {
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    @Override
+    public void start(Owner owner) {
+    }
+
+    @Override
+    public long newId() {
+        return nextId.getAndIncrement();
+    }
+
+    @Override
+    public void reserveIds(long nextId) {
+        this.nextId.accumulateAndGet(nextId, Math::max);
+    }
+
+    @Override
+    public boolean isOwned(long id) {
+        return true;
+    }
+
+    @Override
+    public void started(Task task) {
+    }
+
+    @Override
+    public boolean publishesTasks() {
+        return false;
+    }
+
+    @Override
+    public void completed(long id, String result) {
+    }
+
+    @Override
+    public void cancelled(long id) {
+    }
+
+    @Override
+    public void failed(long id, String error) {
+    }
+
+    @Override
+    public Task getRemoteTask(long id) {
+        return null;
+    }
+
+    @Override
+    public boolean cancelRemote(long id) {
+        return false;
+    }
+
+    @Override
+    public Collection<Task> allTasks(Collection<Task> ownedTasks) {
+        return ownedTasks;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,189 @@
+package org.example;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link Flow.Publisher} for progress values (0.0 - 1.0) of a long running operation.
+ * <p>
+ * Reporting progress is cheap (a couple of volatile writes) and can be done as often as the job likes. Values are
+ * coalesced on the server: subscribers only get the latest value, at most once per dispatch interval. A job
+ * reporting thousands of ticks per second thus causes only a few UI updates per second. The dispatch is scheduled
+ * only while there are subscribers, a publisher nobody follows costs no timer work.
+ * <p>
+ * All subscriber signals are delivered from a single shared dispatcher thread, so subscribers must not block.
+ */
+public class ProgressPublisher implements Flow.Publisher<Double> {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 250;
+
+    private static final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("progress-dispatcher").daemon().factory());
+
+    private final long intervalMillis;
+    private final Set<ProgressSubscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong version = new AtomicLong();
+    private volatile double latest;
+    private volatile boolean closed;
+    // A lock instead of synchronized: scheduling blocks on the lock of the dispatcher, which would pin a virtual
+    // thread to its carrier
+    private final ReentrantLock dispatchLock = new ReentrantLock();
+    private ScheduledFuture<?> dispatch;
+
+    public ProgressPublisher() {
+        this(DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public ProgressPublisher(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Reports a new progress value. Only the latest value is delivered to the subscribers.
+     *
+     * @param progress the progress, between 0.0 and 1.0
+     */
+    public void report(double progress) {
+        latest = progress;
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return the latest reported progress
+     */
+    public double getLatest() {
+        return latest;
+    }
+
+    /**
+     * Delivers the latest value to the subscribers and completes them. No values are delivered after this.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        dispatcher.execute(() -> {
+            stopDispatch();
+            dispatch();
+            for (ProgressSubscription subscription : subscriptions) {
+                subscription.subscriber.onComplete();
+            }
+            subscriptions.clear();
+        });
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Double> subscriber) {
+        ProgressSubscription subscription = new ProgressSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+        if (closed) {
+            // close() may already have drained the subscribers, finish this one from the dispatcher thread
+            dispatcher.execute(() -> {
+                if (subscriptions.remove(subscription)) {
+                    subscription.deliver(version.get(), latest);
+                    subscriber.onComplete();
+                }
+            });
+        } else {
+            startDispatch();
+        }
+    }
+
+    private void startDispatch() {
+        dispatchLock.lock();
+        try {
+            if (dispatch == null && !closed) {
+                dispatch = dispatcher.scheduleAtFixedRate(this::dispatch, 0, intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    private void stopDispatch() {
+        dispatchLock.lock();
+        try {
+            if (dispatch != null) {
+                dispatch.cancel(false);
+                dispatch = null;
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the dispatch after the last subscriber cancelled, a new subscriber starts it again.
+     */
+    private void stopDispatchIfUnsubscribed() {
+        dispatchLock.lock();
+        try {
+            // Checked with the lock held, a subscriber added meanwhile has either started the dispatch already or
+            // starts it after this
+            if (subscriptions.isEmpty()) {
+                stopDispatch();
+            }
+        } finally {
+            dispatchLock.unlock();
+        }
+    }
+
+    private void dispatch() {
+        long currentVersion = version.get();
+        double value = latest;
+        for (ProgressSubscription subscription : subscriptions) {
+            subscription.deliver(currentVersion, value);
+        }
+    }
+
+    private class ProgressSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super Double> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        // Only touched from the dispatcher thread
+        private long deliveredVersion = -1;
+
+        ProgressSubscription(Flow.Subscriber<? super Double> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void deliver(long currentVersion, double value) {
+            if (currentVersion == deliveredVersion || demand.get() == 0) {
+                return;
+            }
+            deliveredVersion = currentVersion;
+            demand.decrementAndGet();
+            subscriber.onNext(value);
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                dispatcher.execute(() -> subscriber.onError(
+                        new IllegalArgumentException("Requested items must be positive, was " + n)));
+                return;
+            }
+            demand.accumulateAndGet(n, (current, added) -> {
+                long sum = current + added;
+                return sum < 0 ? Long.MAX_VALUE : sum;
+            });
+        }
+
+        @Override
+        public void cancel() {
+            if (subscriptions.remove(this)) {
+                stopDispatchIfUnsubscribed();
+            }
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package org.example;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * De-duplicates concurrent asynchronous calls: while a call for a key is in flight, further calls with an equal key
+ * don't start the work again, but share the result of the call already running.
+ * <p>
+ * Each caller gets an own future, so callers can cancel independently. The shared work is cancelled (with
+ * cancel(true), interrupting it if the underlying future supports that) only when the last waiting caller has
+ * cancelled. Once the work completes, the next call for the key starts it again: results are not cached.
+ *
+ * @param <K> the type of the keys, e.g. the arguments of the call. Must implement equals and hashCode.
+ * @param <V> the type of the results
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, Flight> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder sharedCalls = new LongAdder();
+
+    /**
+     * Executes the call, or joins the call already in flight for an equal key.
+     *
+     * @param key  the key identifying equal calls
+     * @param call starts the actual work, only invoked if no call for the key is in flight
+     * @return a future for the result, private to this caller
+     */
+    public CompletableFuture<V> execute(K key, Supplier<CompletableFuture<V>> call) {
+        while (true) {
+            Flight created = new Flight(key);
+            Flight flight = inFlight.putIfAbsent(key, created);
+            if (flight == null) {
+                // Join before starting, so a call completing immediately can't be abandoned with no waiters
+                Waiter waiter = created.join();
+                created.start(call);
+                return waiter;
+            }
+            Waiter waiter = flight.join();
+            if (waiter != null) {
+                sharedCalls.increment();
+                return waiter;
+            }
+            // The last waiter just cancelled the flight, help removing it and start a new one
+            inFlight.remove(key, flight);
+        }
+    }
+
+    /**
+     * @return the number of calls that joined a call already in flight, instead of starting the work again
+     */
+    public long getSharedCalls() {
+        return sharedCalls.sum();
+    }
+
+    /**
+     * @return the number of distinct calls currently in flight
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private final class Flight {
+
+        private final K key;
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+        private volatile CompletableFuture<V> work;
+        // Guarded by this
+        private int waiters;
+        private boolean abandoned;
+
+        Flight(K key) {
+            this.key = key;
+        }
+
+        void start(Supplier<CompletableFuture<V>> call) {
+            CompletableFuture<V> w;
+            try {
+                w = call.get();
+            } catch (RuntimeException e) {
+                w = CompletableFuture.failedFuture(e);
+            }
+            work = w;
+            w.whenComplete((value, error) -> {
+                inFlight.remove(key, this);
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+            if (isAbandoned()) {
+                // All waiters cancelled while the work was being started
+                w.cancel(true);
+            }
+        }
+
+        synchronized Waiter join() {
+            if (abandoned) {
+                return null;
+            }
+            waiters++;
+            Waiter waiter = new Waiter(this);
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    waiter.completeExceptionally(error);
+                } else {
+                    waiter.complete(value);
+                }
+            });
+            return waiter;
+        }
+
+        void leave() {
+            synchronized (this) {
+                if (--waiters > 0) {
+                    return;
+                }
+                abandoned = true;
+            }
+            inFlight.remove(key, this);
+            CompletableFuture<V> w = work;
+            if (w != null) {
+                w.cancel(true);
+            }
+        }
+
+        private synchronized boolean isAbandoned() {
+            return abandoned;
+        }
+    }
+
+    private final class Waiter extends CompletableFuture<V> {
+
+        private final Flight flight;
+
+        Waiter(Flight flight) {
+            this.flight = flight;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // Like super.cancel, but knowing if this call cancelled it: super.cancel returns true when cancelled
+            // already, leaving again would count one waiter twice
+            if (completeExceptionally(new CancellationException())) {
+                flight.leave();
+                return true;
+            }
+            return isCancelled();
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package org.example;
 
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalTime;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Consumer;
 
 /**
@@ -13,19 +23,86 @@ import java.util.function.Consumer;
 @Service
 public class SlowService {
 
+    private static final int REPORT_CHUNKS = 20;
+    private static final int ROWS_PER_CHUNK = 2_000;
     /**
-     * Simulates a slow blocking method that takes a certain amount of time to complete.
+     * How many times longer a stalled call takes.
+     */
+    private static final int STALL_FACTOR = 10;
+
+    private final TaskExecutors taskExecutors;
+    private final Timer slowCalls;
+    private final Timer asyncCalls;
+    private final SingleFlight<Integer, String> generateStringCalls = new SingleFlight<>();
+    private final boolean hedging;
+    private final Hedger<String> hedger;
+    private final ScheduledThreadPoolExecutor hedgeScheduler;
+    private final double stallProbability;
+
+    public SlowService(TaskExecutors taskExecutors, DurationEstimator durationEstimator,
+                       @Value("${slow.service.hedging.enabled:false}") boolean hedging,
+                       @Value("${slow.service.hedging.quantile:0.95}") double hedgingQuantile,
+                       @Value("${slow.service.hedging.budget:0.1}") double hedgingBudget,
+                       @Value("${slow.service.stall-probability:0}") double stallProbability,
+                       MeterRegistry meterRegistry) {
+        this.taskExecutors = taskExecutors;
+        this.hedging = hedging;
+        this.stallProbability = stallProbability;
+        // Only starts the hedges, the calls themselves run in the task executors
+        this.hedgeScheduler = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform()
+                .name("slow-service-hedging")
+                .daemon()
+                .factory());
+        hedgeScheduler.setRemoveOnCancelPolicy(true);
+        this.hedger = new Hedger<>(durationEstimator, hedgingQuantile, hedgingBudget, hedgeScheduler);
+        this.slowCalls = Timer.builder("slow.service.calls")
+                .description("Duration of the slow blocking operations")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.asyncCalls = Timer.builder("slow.service.async.calls")
+                .description("Latency of the async calls as seen by the callers, including hedging")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        FunctionCounter.builder("slow.service.calls.shared", generateStringCalls, SingleFlight::getSharedCalls)
+                .description("Async calls that joined an identical call already in flight")
+                .register(meterRegistry);
+        FunctionCounter.builder("slow.service.hedges", hedger, Hedger::getHedges)
+                .description("Duplicate calls started as the original one was slower than usual")
+                .register(meterRegistry);
+        FunctionCounter.builder("slow.service.hedges.won", hedger, Hedger::getHedgesWon)
+                .description("Hedges that completed before the original call")
+                .register(meterRegistry);
+        FunctionCounter.builder("slow.service.hedges.denied", hedger, Hedger::getHedgesDenied)
+                .description("Hedges not started as the hedging budget was used up")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hedgeScheduler.shutdownNow();
+    }
+
+    /**
+     * Simulates a slow blocking method that takes a certain amount of time to complete. Like a real remote call,
+     * it sometimes stalls (with the configured stall probability) and then takes ten times longer.
      *
      * @param millis a parameter that defines how long the method will take to complete
      * @return a "random" string representing the computation of the operation
+     * @throws CancellationException if the thread is interrupted
      */
     public String slowBlockingMethod(int millis) {
-        try {
-            Thread.sleep(millis);
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
-        }
-        return "Done in " + millis + "ms";
+        boolean stalled = ThreadLocalRandom.current().nextDouble() < stallProbability;
+        long sleep = stalled ? (long) millis * STALL_FACTOR : millis;
+        return slowCalls.record(() -> {
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException ex) {
+                // Cancelled, stop right away and keep the interrupted status for the caller
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted after " + millis + "ms sleep was started");
+            }
+            return "Done in " + millis + "ms";
+        });
     }
 
     /**
@@ -34,32 +111,91 @@ public class SlowService {
      *
      * @param progressListener a listener that will be notified about the progress of the operation
      * @return a "random" string representing the computation of the operation
+     * @throws CancellationException if the thread is interrupted, no progress is reported after that
      */
     public String slowBlockingMethodWithNotifier(Consumer<Double> progressListener) {
+        Timer.Sample sample = Timer.start();
         progressListener.accept(0.0);
         LocalTime start = LocalTime.now();
         for(int i = 0; i < 20; i++) {
             try {
                 Thread.sleep(250);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // Cancelled, no more progress notifications
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted at step " + i);
             }
             progressListener.accept(i / 20.0);
         }
+        sample.stop(slowCalls);
         return "Done! " + start + " -> " + LocalTime.now();
     }
 
+    /**
+     * Simulates a slow report, e.g. an export of a large table, written as CSV in chunks while it is generated. The
+     * report is larger than what should be kept on the heap (a couple of megabytes), so it is written to a
+     * {@link ChunkedResult} instead of returned.
+     *
+     * @param progressListener a listener that will be notified about the progress of the operation
+     * @param report the result to write the report to
+     * @return a summary of the report
+     * @throws CancellationException if the thread is interrupted
+     */
+    public String generateReport(Consumer<Double> progressListener, ChunkedResult report) {
+        Timer.Sample sample = Timer.start();
+        progressListener.accept(0.0);
+        report.append(StandardCharsets.UTF_8.encode("id,time,value\n"));
+        int rows = 0;
+        for (int i = 0; i < REPORT_CHUNKS; i++) {
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Interrupted at chunk " + i);
+            }
+            StringBuilder chunk = new StringBuilder();
+            for (int row = 0; row < ROWS_PER_CHUNK; row++, rows++) {
+                chunk.append(rows).append(',').append(LocalTime.now()).append(',').append(Math.sin(rows)).append('\n');
+            }
+            report.append(StandardCharsets.UTF_8.encode(CharBuffer.wrap(chunk)));
+            progressListener.accept((i + 1) / (double) REPORT_CHUNKS);
+        }
+        sample.stop(slowCalls);
+        return "Report of " + rows + " rows, " + report.size() / 1024 + " kB";
+    }
+
 
     /**
      * Generates a string asynchronously. The method immediately returns a {@link CompletableFuture}, a helper in
      * JDKs that is nowadays very popular in asynchronous Java APIS. Users can attach listeners to the future that
      * will be called when the result is ready.
+     * <p>
+     * Note that the work is not executed in the common ForkJoinPool (the default of
+     * {@link CompletableFuture#supplyAsync(java.util.function.Supplier)}), but with {@link TaskExecutors}, as the
+     * operation blocks its thread.
+     * <p>
+     * Concurrent calls with the same parameter share a single execution of the operation: when many users click
+     * the same button at once, the work is done only once. Each caller gets an own future, cancelling it with
+     * cancel(true) interrupts the operation once all callers sharing it have cancelled.
+     * <p>
+     * With hedging enabled, an execution slower than the recent ones (e.g. their p95) is duplicated, and the result
+     * of whichever completes first is used, see {@link Hedger}.
      *
      * @param millis a parameter that defines how long the method will take to complete
      * @return a future that will be completed with the result of the operation
      */
     public CompletableFuture<String> generateStringAsync(int millis) {
-        return CompletableFuture.supplyAsync(() -> slowBlockingMethod(millis));
+        Timer.Sample sample = Timer.start();
+        CompletableFuture<String> future = generateStringCalls.execute(millis, () -> hedging
+                ? hedger.execute("generateString " + millis,
+                        () -> taskExecutors.supplyAsync(() -> slowBlockingMethod(millis)))
+                : taskExecutors.supplyAsync(() -> slowBlockingMethod(millis)));
+        future.whenComplete((result, error) -> {
+            if (error == null) {
+                sample.stop(asyncCalls);
+            }
+        });
+        return future;
     }
 
 }
@@ -1,39 +1,304 @@
 package org.example;
 
 import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
 
 /**
  * A data structure for a task whose result can be listened using a {@link CompletableFuture}.
- *
- * @param name
- * @param start
- * @param duration
- * @param listeners
+ * <p>
+ * Subscribing, unsubscribing and completing are thread safe: UI threads subscribe while the scheduler thread
+ * completes the task. The progress of the task can be followed via {@link #progress()}.
+ * <p>
+ * A task can be cancelled, which interrupts the thread doing its work and completes the subscriptions with a
+ * {@link CancellationException}. A task whose work failed completes the subscriptions with the error instead.
+ * <p>
+ * Most tasks are never subscribed to or followed, so the subscriber set and the progress publisher are only created
+ * when first needed.
  */
-public record Task(int id, String name, LocalDateTime start, int duration, List<CompletableFuture<String>> listeners) {
+public final class Task {
 
-    public Task(int id, String name, LocalDateTime now, int duration) {
-        this(id, name, now, duration, new ArrayList<>());
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
     }
 
-    public CompletableFuture<String> subscribe() {
-        if (start.plusSeconds(duration).isBefore(LocalDateTime.now())) {
-            return CompletableFuture.completedFuture("Task was alrelady completed :-)");
+    private final long id;
+    private final String name;
+    private final LocalDateTime start;
+    private final int duration;
+    /**
+     * Created by the first subscriber.
+     */
+    private volatile Set<CompletableFuture<String>> listeners;
+    /**
+     * Holds the final state of the task, completed, cancelled or failed only once.
+     */
+    private final CompletableFuture<String> outcome = new CompletableFuture<>();
+    /**
+     * Created by the first subscriber of the progress, until then only the latest progress is kept.
+     */
+    private volatile ProgressPublisher progress;
+    private volatile double latestProgress;
+    private volatile Future<?> worker;
+
+    public Task(long id, String name, LocalDateTime start, int duration) {
+        this.id = id;
+        this.name = name;
+        this.start = start;
+        this.duration = duration;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public LocalDateTime start() {
+        return start;
+    }
+
+    public int duration() {
+        return duration;
+    }
+
+    public Status status() {
+        if (!outcome.isDone()) {
+            return Status.RUNNING;
+        }
+        return switch (outcome.state()) {
+            case CANCELLED -> Status.CANCELLED;
+            case FAILED -> Status.FAILED;
+            default -> Status.COMPLETED;
+        };
+    }
+
+    public boolean isCompleted() {
+        return outcome.isDone();
+    }
+
+    /**
+     * @return a publisher for the progress of the task, values between 0.0 and 1.0. Updates are coalesced and rate
+     * limited, so subscribers only get a few updates per second, no matter how often the progress is reported.
+     * The publisher completes when the task completes.
+     */
+    public Flow.Publisher<Double> progress() {
+        ProgressPublisher publisher = progress;
+        if (publisher != null) {
+            return publisher;
         }
+        synchronized (this) {
+            if (progress == null) {
+                publisher = new ProgressPublisher();
+                publisher.report(status() == Status.COMPLETED ? 1.0 : latestProgress);
+                if (outcome.isDone()) {
+                    publisher.close();
+                }
+                progress = publisher;
+            }
+            return progress;
+        }
+    }
+
+    /**
+     * @return the latest reported progress of the task
+     */
+    public double progressValue() {
+        ProgressPublisher publisher = progress;
+        return publisher == null ? latestProgress : publisher.getLatest();
+    }
+
+    /**
+     * Reports the progress of the task. Can be called as often as needed, subscribers get coalesced updates.
+     *
+     * @param value the progress, between 0.0 and 1.0
+     */
+    public void reportProgress(double value) {
+        ProgressPublisher publisher = progress;
+        if (publisher == null) {
+            synchronized (this) {
+                publisher = progress;
+                if (publisher == null) {
+                    latestProgress = value;
+                    return;
+                }
+            }
+        }
+        publisher.report(value);
+    }
+
+    /**
+     * Attaches the work executing this task, so that it can be interrupted if the task is cancelled.
+     *
+     * @param worker the future of the work, e.g. from ExecutorService.submit
+     */
+    public void setWorker(Future<?> worker) {
+        this.worker = worker;
+        if (outcome.isCancelled()) {
+            // Cancelled before the work was attached
+            worker.cancel(true);
+        }
+    }
+
+    /**
+     * Registers an internal hook executed when the task is completed or cancelled. Unlike subscribers, these are
+     * not counted or exposed to the UI.
+     *
+     * @param action the action to run, by the thread finishing the task
+     */
+    void whenFinished(Runnable action) {
+        outcome.whenComplete((result, error) -> action.run());
+    }
+
+    public int subscriberCount() {
+        Set<CompletableFuture<String>> l = listeners;
+        return l == null ? 0 : l.size();
+    }
+
+    public CompletableFuture<String> subscribe() {
         CompletableFuture<String> future = new CompletableFuture<>();
-        listeners.add(future);
+        if (outcome.isDone()) {
+            notifyListener(future);
+            return future;
+        }
+        Set<CompletableFuture<String>> l = listeners();
+        l.add(future);
+        // The task might have been finished between the check above and adding the listener, in which case
+        // complete() or cancel() may have missed it. Finishing the future twice is harmless.
+        if (outcome.isDone()) {
+            l.remove(future);
+            notifyListener(future);
+        }
         return future;
     }
 
     public void unSubscribe(CompletableFuture<String> future) {
-        listeners.remove(future);
+        Set<CompletableFuture<String>> l = listeners;
+        if (future != null && l != null) {
+            l.remove(future);
+        }
+    }
+
+    private Set<CompletableFuture<String>> listeners() {
+        Set<CompletableFuture<String>> l = listeners;
+        if (l != null) {
+            return l;
+        }
+        synchronized (this) {
+            if (listeners == null) {
+                listeners = ConcurrentHashMap.newKeySet();
+            }
+            return listeners;
+        }
     }
 
     public void complete(String result) {
-        listeners.forEach(listener -> listener.complete(result));
+        if (completeOutcome(result)) {
+            notifyCompleted();
+        }
+    }
+
+    /**
+     * The first half of {@link #complete(String)}: sets the result, so the task is completed from now on, but does
+     * not notify the subscribers yet. Lets the thread completing lots of tasks leave the notifications to others.
+     *
+     * @return true if the task was completed, false if it was already completed, cancelled or failed
+     */
+    boolean completeOutcome(String result) {
+        return outcome.complete(result);
+    }
+
+    /**
+     * The second half of {@link #complete(String)}, after {@link #completeOutcome(String)} returned true.
+     */
+    void notifyCompleted() {
+        stopWorker(false);
+        notifyListeners();
+        closeProgress(true);
+    }
+
+    /**
+     * Cancels the task: interrupts its work (if attached), stops the progress updates and completes the
+     * subscriptions with a {@link CancellationException}.
+     *
+     * @return true if the task was cancelled, false if it was already completed or cancelled
+     */
+    public boolean cancel() {
+        if (!outcome.cancel(false)) {
+            return false;
+        }
+        stopWorker(true);
+        notifyListeners();
+        closeProgress(false);
+        return true;
+    }
+
+    /**
+     * Fails the task, e.g. when its work threw an exception: stops the progress updates and completes the
+     * subscriptions exceptionally with the given error.
+     *
+     * @param error the reason of the failure
+     * @return true if the task failed, false if it was already completed, cancelled or failed
+     */
+    public boolean fail(Throwable error) {
+        if (!outcome.completeExceptionally(error)) {
+            return false;
+        }
+        stopWorker(false);
+        notifyListeners();
+        closeProgress(false);
+        return true;
+    }
+
+    private void closeProgress(boolean completed) {
+        ProgressPublisher publisher;
+        synchronized (this) {
+            if (completed) {
+                latestProgress = 1.0;
+            }
+            publisher = progress;
+        }
+        if (publisher != null) {
+            if (completed) {
+                publisher.report(1.0);
+            }
+            publisher.close();
+        }
+    }
+
+    private void stopWorker(boolean interrupt) {
+        Future<?> w = worker;
+        if (w != null) {
+            w.cancel(interrupt);
+        }
+    }
+
+    private void notifyListeners() {
+        Set<CompletableFuture<String>> l = listeners;
+        if (l == null) {
+            return;
+        }
+        for (CompletableFuture<String> listener : l) {
+            notifyListener(listener);
+        }
+        l.clear();
+    }
+
+    private void notifyListener(CompletableFuture<String> listener) {
+        switch (outcome.state()) {
+            case SUCCESS -> listener.complete(outcome.resultNow());
+            case FAILED -> listener.completeExceptionally(outcome.exceptionNow());
+            default -> listener.cancel(false);
+        }
     }
 
 }
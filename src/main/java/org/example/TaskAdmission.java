@@ -0,0 +1,170 @@
+package org.example;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Admission control for user submitted tasks: limits the number of concurrently running tasks (globally and per
+ * owner, e.g. a session) and keeps the rest in a bounded wait queue. Submissions over the limits are rejected
+ * immediately with a {@link TaskRejectedException}, so the memory and scheduling cost of the tasks stays bounded
+ * even if someone submits tasks in a loop.
+ */
+@Component
+public class TaskAdmission {
+
+    private final int maxActive;
+    private final int maxPerOwner;
+    private final int maxQueued;
+
+    // All state guarded by this, the critical sections are short and bounded by maxQueued
+    private final ArrayDeque<Pending> queue = new ArrayDeque<>();
+    private final Map<String, Integer> tasksPerOwner = new HashMap<>();
+    private int active;
+    /**
+     * The tickets handed a slot while this thread is already starting tasks, started by the outermost start call.
+     * A task finishing synchronously releases its slot within start, handing it over right there would recurse
+     * once per queued task.
+     */
+    private final ThreadLocal<ArrayDeque<Pending>> handovers = new ThreadLocal<>();
+
+    private final Counter rejected;
+
+    public TaskAdmission(@Value("${tasks.admission.max-active:1000}") int maxActive,
+                         @Value("${tasks.admission.max-per-owner:5}") int maxPerOwner,
+                         @Value("${tasks.admission.max-queued:100}") int maxQueued,
+                         MeterRegistry meterRegistry) {
+        this.maxActive = maxActive;
+        this.maxPerOwner = maxPerOwner;
+        this.maxQueued = maxQueued;
+        Gauge.builder("tasks.admission.queued", this, TaskAdmission::getQueueSize)
+                .description("Submitted tasks waiting for capacity")
+                .register(meterRegistry);
+        rejected = Counter.builder("tasks.admission.rejected")
+                .description("Submitted tasks rejected due to overload")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Admits a task, starting it right away if there is capacity or queueing it otherwise.
+     *
+     * @param owner the owner of the task, limited to max-per-owner running and queued tasks
+     * @param starter starts the task, called when the task is admitted
+     * @return the ticket for the task
+     * @throws TaskRejectedException if the owner has too many tasks or the wait queue is full
+     */
+    TaskTicket admit(String owner, Supplier<Task> starter) {
+        TaskTicket ticket = new TaskTicket(this, owner);
+        synchronized (this) {
+            int ownersTasks = tasksPerOwner.getOrDefault(owner, 0);
+            if (ownersTasks >= maxPerOwner) {
+                rejected.increment();
+                throw new TaskRejectedException("You already have " + ownersTasks + " tasks running or queued");
+            }
+            if (active < maxActive) {
+                active++;
+            } else if (queue.size() < maxQueued) {
+                queue.add(new Pending(ticket, starter));
+                tasksPerOwner.put(owner, ownersTasks + 1);
+                return ticket;
+            } else {
+                rejected.increment();
+                throw new TaskRejectedException("The server is busy, " + queue.size() + " tasks already queued");
+            }
+            tasksPerOwner.put(owner, ownersTasks + 1);
+        }
+        start(new Pending(ticket, starter));
+        return ticket;
+    }
+
+    private void start(Pending pending) {
+        ArrayDeque<Pending> starting = handovers.get();
+        if (starting != null) {
+            starting.add(pending);
+            return;
+        }
+        starting = new ArrayDeque<>();
+        handovers.set(starting);
+        try {
+            for (Pending next = pending; next != null; next = starting.poll()) {
+                start(next.ticket(), next.starter());
+            }
+        } finally {
+            handovers.remove();
+        }
+    }
+
+    private void start(TaskTicket ticket, Supplier<Task> starter) {
+        Task task;
+        try {
+            task = starter.get();
+        } catch (RuntimeException e) {
+            release(ticket.getOwner());
+            ticket.getTask().completeExceptionally(e);
+            return;
+        }
+        task.whenFinished(() -> release(ticket.getOwner()));
+        ticket.getTask().complete(task);
+    }
+
+    private void release(String owner) {
+        Pending next;
+        synchronized (this) {
+            tasksPerOwner.computeIfPresent(owner, (o, count) -> count > 1 ? count - 1 : null);
+            next = queue.poll();
+            if (next == null) {
+                active--;
+                return;
+            }
+            // The slot is handed over to the next one in the queue, active count stays the same
+        }
+        start(next);
+    }
+
+    synchronized int getQueuePosition(TaskTicket ticket) {
+        int position = 1;
+        for (Pending pending : queue) {
+            if (pending.ticket() == ticket) {
+                return position;
+            }
+            position++;
+        }
+        return 0;
+    }
+
+    boolean withdraw(TaskTicket ticket) {
+        synchronized (this) {
+            if (!removeFromQueue(ticket)) {
+                return false;
+            }
+            tasksPerOwner.computeIfPresent(ticket.getOwner(), (o, count) -> count > 1 ? count - 1 : null);
+        }
+        ticket.getTask().cancel(false);
+        return true;
+    }
+
+    private boolean removeFromQueue(TaskTicket ticket) {
+        for (Iterator<Pending> iterator = queue.iterator(); iterator.hasNext(); ) {
+            if (iterator.next().ticket() == ticket) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized int getQueueSize() {
+        return queue.size();
+    }
+
+    private record Pending(TaskTicket ticket, Supplier<Task> starter) {
+    }
+}
@@ -0,0 +1,79 @@
+package org.example;
+
+import org.springframework.stereotype.Component;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+
+/**
+ * The time source of the task subsystem. As a {@link Clock} it gives the wall clock time for the start times and
+ * results shown to users, {@link #nanoTime()} gives the monotonic time used for the deadlines and durations.
+ * <p>
+ * The app uses the system clock. Simulations can run the tasks in virtual time instead, e.g. push a million hour
+ * long tasks through in seconds, see VirtualTimeHarness in the tests.
+ */
+public abstract class TaskClock extends Clock {
+
+    private static final TaskClock SYSTEM = new SystemClock();
+
+    /**
+     * @return the current value of the monotonic time source, in nanoseconds. Only meaningful as a difference to
+     * another value, like {@link System#nanoTime()}.
+     */
+    public abstract long nanoTime();
+
+    /**
+     * @return true if the time passes in real time, false for a virtual time advanced by a simulation. The scheduled
+     * work that only refreshes the state shown to users, like the simulated progress, is skipped in virtual time.
+     */
+    public boolean isRealTime() {
+        return true;
+    }
+
+    /**
+     * @return the clock of the system, {@link System#nanoTime()} and the system default time zone
+     */
+    public static TaskClock system() {
+        return SYSTEM;
+    }
+
+    @Component
+    static class SystemClock extends TaskClock {
+
+        private final Clock wallClock;
+
+        SystemClock() {
+            this(Clock.systemDefaultZone());
+        }
+
+        private SystemClock(Clock wallClock) {
+            this.wallClock = wallClock;
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return wallClock.getZone();
+        }
+
+        @Override
+        public TaskClock withZone(ZoneId zone) {
+            return new SystemClock(wallClock.withZone(zone));
+        }
+
+        @Override
+        public Instant instant() {
+            return wallClock.instant();
+        }
+
+        @Override
+        public long millis() {
+            return wallClock.millis();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.example;
+
+/**
+ * A change in the active tasks, see {@link AppWideTasks#addTaskListener(java.util.function.Consumer)}.
+ *
+ * @param type what happened
+ * @param task the task that changed. With the compact storage of AppWideTasks, the tasks not materialized yet are
+ *             passed as snapshots, use {@link AppWideTasks#getTask(long)} for the live task.
+ */
+public record TaskEvent(Type type, Task task) {
+
+    public enum Type {
+        /**
+         * A task was started (or, in a cluster, started on another node).
+         */
+        ADDED,
+        /**
+         * The progress of a task changed. Coalesced like the progress of the task, at most a few per second.
+         */
+        PROGRESS,
+        /**
+         * A task completed with a result and is no longer active.
+         */
+        COMPLETED,
+        /**
+         * A task was removed without a result, cancelled or failed, and is no longer active.
+         */
+        REMOVED
+    }
+}
@@ -0,0 +1,117 @@
+package org.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Provides the executor used for slow, blocking work in this app: the slow service calls, the async helpers in
+ * the UI and the completion of app wide tasks.
+ * <p>
+ * By default the work is executed in virtual threads. Blocking work should never end up in the
+ * {@link ForkJoinPool#commonPool()} (the default of CompletableFuture.supplyAsync), as it only has "cores - 1"
+ * threads and it is shared with e.g. all parallel streams in the JVM.
+ * <p>
+ * The executor is instrumented as "slow-tasks", e.g. executor.idle tells how long the work waited in the queue.
+ */
+@Component
+public class TaskExecutors {
+
+    public enum Mode {
+        /**
+         * A new virtual thread for each task, the best choice for blocking work in Java 21+.
+         */
+        VIRTUAL,
+        /**
+         * A fixed size pool of platform threads.
+         */
+        PLATFORM,
+        /**
+         * The common ForkJoinPool, the JDK default. Only suitable for short, non-blocking work.
+         */
+        COMMON_POOL
+    }
+
+    private final Mode mode;
+    private final ExecutorService executor;
+
+    public TaskExecutors(@Value("${tasks.executor.mode:VIRTUAL}") Mode mode,
+                         @Value("${tasks.executor.platform-threads:64}") int platformThreads,
+                         MeterRegistry meterRegistry) {
+        this.mode = mode;
+        ExecutorService executor = switch (mode) {
+            case VIRTUAL -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("slow-task-", 0).factory());
+            case PLATFORM -> Executors.newFixedThreadPool(platformThreads,
+                    Thread.ofPlatform().name("slow-task-", 0).daemon().factory());
+            case COMMON_POOL -> ForkJoinPool.commonPool();
+        };
+        this.executor = ExecutorServiceMetrics.monitor(meterRegistry, executor, "slow-tasks");
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @return the executor to run slow and blocking work in
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Like {@link CompletableFuture#supplyAsync(Supplier, java.util.concurrent.Executor)}, but cancelling the
+     * returned future with cancel(true) interrupts the thread executing the supplier. A plain CompletableFuture
+     * ignores the mayInterruptIfRunning flag, so the work would go on, holding its thread.
+     *
+     * @param supplier the work to execute
+     * @return a future for the result
+     * @param <T> the type of the result
+     */
+    public <T> CompletableFuture<T> supplyAsync(Supplier<T> supplier) {
+        InterruptibleFuture<T> future = new InterruptibleFuture<>();
+        future.worker = executor.submit(() -> {
+            if (future.isDone()) {
+                // Cancelled before the work started
+                return;
+            }
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (mode != Mode.COMMON_POOL) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static class InterruptibleFuture<T> extends CompletableFuture<T> {
+
+        private volatile Future<?> worker;
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            Future<?> w = worker;
+            if (cancelled && w != null) {
+                w.cancel(mayInterruptIfRunning);
+            }
+            return cancelled;
+        }
+    }
+}
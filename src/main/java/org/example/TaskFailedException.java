@@ -0,0 +1,16 @@
+package org.example;
+
+/**
+ * Completes the subscriptions of a task whose work failed, see {@link Task#fail(Throwable)}. The message tells which
+ * task failed and why, the cause (if known on this node) is the exception thrown by the work.
+ */
+public class TaskFailedException extends RuntimeException {
+
+    public TaskFailedException(String message) {
+        super(message);
+    }
+
+    public TaskFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
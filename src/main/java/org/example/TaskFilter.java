@@ -0,0 +1,38 @@
+package org.example;
+
+import java.util.function.Predicate;
+
+/**
+ * A filter for listing tasks, see {@link AppWideTasks#findTasks(TaskFilter, java.util.Comparator, int, int)}.
+ *
+ * @param name a part of the task name to match (case insensitive), null or empty for any
+ * @param status the status to match, null for any
+ */
+public record TaskFilter(String name, Task.Status status) implements Predicate<Task> {
+
+    public static final TaskFilter ALL = new TaskFilter(null, null);
+
+    @Override
+    public boolean test(Task task) {
+        return matches(task.name(), task.status());
+    }
+
+    /**
+     * Tests the fields of a task, for tasks that are not materialized as {@link Task} objects.
+     */
+    public boolean matches(String taskName, Task.Status taskStatus) {
+        if (status != null && taskStatus != status) {
+            return false;
+        }
+        // regionMatches instead of toLowerCase().contains(), no garbage per task
+        if (name != null && !name.isEmpty()) {
+            for (int i = 0; i <= taskName.length() - name.length(); i++) {
+                if (taskName.regionMatches(true, i, name, 0, name.length())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,446 @@
+package org.example;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of task starts, progress checkpoints and completions, so that {@link AppWideTasks} can
+ * rebuild its state after a restart.
+ * <p>
+ * Records are appended by a single writer thread that groups everything arriving within the fsync interval to one
+ * write and one fsync. Each record is framed with its length and a CRC32, so a torn write at the end of the file
+ * (e.g. a crash during the write) is detected and dropped on replay. On startup the journal is replayed (memory
+ * mapped, sequentially) and compacted: only the running tasks and the latest completed results are kept. While
+ * running, the writer compacts the journal likewise once most of its records are dead, e.g. superseded progress
+ * checkpoints and the records of finished tasks.
+ * <p>
+ * The journal is disabled if no path is configured.
+ */
+@Component
+public class TaskJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(TaskJournal.class);
+
+    private static final byte STARTED = 1;
+    private static final byte PROGRESS = 2;
+    private static final byte COMPLETED = 3;
+    private static final byte CANCELLED = 4;
+    /**
+     * Written by compaction, keeps the id sequence even if the task with the highest id is compacted away.
+     */
+    private static final byte ID_WATERMARK = 5;
+
+    private static final ByteBuffer END_OF_JOURNAL = ByteBuffer.allocate(0);
+
+    /**
+     * A task as recovered from the journal.
+     *
+     * @param startEpochMillis the start time of the task
+     * @param duration the (estimated) duration of the task, in seconds
+     * @param job true if the task was started with real work, which can't be resumed after a restart
+     * @param progress the last progress checkpoint
+     * @param result the result of a completed task, null for running tasks
+     */
+    public record Entry(long id, String name, long startEpochMillis, int duration, boolean job, double progress,
+                        String result) {
+    }
+
+    /**
+     * @param running the tasks that were running when the app was stopped
+     * @param completed the latest completed tasks, oldest first
+     * @param nextId the next unused task id
+     */
+    public record Recovery(List<Entry> running, List<Entry> completed, long nextId) {
+    }
+
+    private final Path path;
+    private final long fsyncIntervalMillis;
+    private final int retainedResults;
+    private final int compactMinRecords;
+    private final double compactDeadRatio;
+    private final BlockingQueue<ByteBuffer> pendingWrites = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    /**
+     * The records in the journal, and an upper bound of the live ones, counted by the writer thread to decide when
+     * to compact.
+     */
+    private long recordCount;
+    private long runningTasks;
+    private long completedTasks;
+    private Thread writer;
+    private volatile boolean open;
+
+    public TaskJournal(@Value("${tasks.journal.path:}") String path,
+                       @Value("${tasks.journal.fsync-interval-millis:50}") long fsyncIntervalMillis,
+                       @Value("${tasks.journal.retained-results:10000}") int retainedResults,
+                       @Value("${tasks.journal.compact-min-records:100000}") int compactMinRecords,
+                       @Value("${tasks.journal.compact-dead-ratio:0.8}") double compactDeadRatio) {
+        this.path = path.isBlank() ? null : Path.of(path);
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.retainedResults = retainedResults;
+        this.compactMinRecords = compactMinRecords;
+        this.compactDeadRatio = compactDeadRatio;
+    }
+
+    /**
+     * @return a journal that doesn't persist anything, e.g. for tests and benchmarks
+     */
+    public static TaskJournal disabled() {
+        return new TaskJournal("", 0, 0, 0, 0);
+    }
+
+    public boolean isEnabled() {
+        return path != null;
+    }
+
+    /**
+     * Replays and compacts the existing journal and opens it for appending.
+     *
+     * @return the state recovered from the journal
+     */
+    public synchronized Recovery open() {
+        if (!isEnabled()) {
+            return new Recovery(List.of(), List.of(), 0);
+        }
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            long started = System.nanoTime();
+            Recovery recovery = replay();
+            compact(recovery);
+            channel = openForAppend();
+            open = true;
+            writer = Thread.ofPlatform().name("task-journal").daemon().start(this::writeLoop);
+            log.info("Recovered {} running and {} completed tasks from {} in {} ms", recovery.running().size(),
+                    recovery.completed().size(), path, (System.nanoTime() - started) / 1_000_000);
+            return recovery;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Opening the task journal failed", e);
+        }
+    }
+
+    /**
+     * @param startEpochMillis the start time of the task, in the zone of the {@link TaskClock}
+     */
+    public void started(long id, String name, long startEpochMillis, int duration, boolean job) {
+        if (open) {
+            append(startedBody(id, startEpochMillis, duration, job, name));
+        }
+    }
+
+    public void progress(long id, double progress) {
+        if (open) {
+            append(body(PROGRESS, id, 8).putDouble(progress));
+        }
+    }
+
+    public void completed(long id, String result) {
+        if (!open) {
+            return;
+        }
+        byte[] bytes = result.getBytes(StandardCharsets.UTF_8);
+        append(body(COMPLETED, id, 4 + bytes.length).putInt(bytes.length).put(bytes));
+    }
+
+    public void cancelled(long id) {
+        if (open) {
+            append(body(CANCELLED, id, 0));
+        }
+    }
+
+    /**
+     * @param id the id of the task
+     * @return a subscriber for the progress of a task, journaling a checkpoint every 10% of progress
+     */
+    public Flow.Subscriber<Double> progressCheckpoints(long id) {
+        return new Flow.Subscriber<>() {
+            private double checkpoint;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Double progress) {
+                if (progress - checkpoint >= 0.1) {
+                    checkpoint = progress;
+                    progress(id, progress);
+                }
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        };
+    }
+
+    private static ByteBuffer body(byte type, long id, int payloadLength) {
+        return ByteBuffer.allocate(1 + 8 + payloadLength).put(type).putLong(id);
+    }
+
+    private void append(ByteBuffer body) {
+        pendingWrites.add(frame(body.flip()));
+    }
+
+    private static ByteBuffer frame(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        ByteBuffer frame = ByteBuffer.allocate(8 + body.remaining());
+        frame.putInt(body.remaining()).putInt((int) crc.getValue()).put(body);
+        return frame.flip();
+    }
+
+    private void writeLoop() {
+        List<ByteBuffer> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(pendingWrites.take());
+                // Group commit: everything arriving within the interval is written and synced at once
+                Thread.sleep(fsyncIntervalMillis);
+                pendingWrites.drainTo(batch);
+                boolean end = batch.removeIf(buffer -> buffer == END_OF_JOURNAL);
+                ByteBuffer[] buffers = batch.toArray(ByteBuffer[]::new);
+                long remaining = batch.stream().mapToLong(ByteBuffer::remaining).sum();
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+                channel.force(false);
+                batch.forEach(this::count);
+                batch.clear();
+                if (end) {
+                    channel.close();
+                    return;
+                }
+                if (recordCount >= compactMinRecords && deadRecords() > recordCount * compactDeadRatio) {
+                    compactWhileOpen();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            open = false;
+            log.error("Writing the task journal failed, tasks are no longer journaled", e);
+        }
+    }
+
+    private FileChannel openForAppend() throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Counts a written record, by its type.
+     */
+    private void count(ByteBuffer frame) {
+        recordCount++;
+        switch (frame.get(8)) {
+            case STARTED -> runningTasks++;
+            case COMPLETED -> {
+                runningTasks = Math.max(0, runningTasks - 1);
+                completedTasks = Math.min(retainedResults, completedTasks + 1);
+            }
+            case CANCELLED -> runningTasks = Math.max(0, runningTasks - 1);
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * @return a lower bound of the dead records: at most the watermark, a started and a progress record of each
+     * running task and a started and a completed record of each retained result are live
+     */
+    private long deadRecords() {
+        return recordCount - (1 + 2 * runningTasks + 2 * completedTasks);
+    }
+
+    /**
+     * Compacts the journal from the writer thread, after all records so far have been written and synced. The
+     * journal is replayed from the file, so the live state is not kept in memory meanwhile.
+     */
+    private void compactWhileOpen() throws IOException {
+        long started = System.nanoTime();
+        long before = recordCount;
+        channel.close();
+        compact(replay());
+        channel = openForAppend();
+        log.info("Compacted the task journal from {} to {} records in {} ms", before, recordCount,
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private Recovery replay() throws IOException {
+        Map<Long, MutableEntry> running = new LinkedHashMap<>();
+        LinkedHashMap<Long, MutableEntry> completed = new LinkedHashMap<>();
+        long nextId = 0;
+        if (!Files.exists(path)) {
+            return new Recovery(List.of(), List.of(), nextId);
+        }
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                ByteBuffer body = buffer.slice(buffer.position(), length);
+                CRC32 crc = new CRC32();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                buffer.position(buffer.position() + length);
+
+                byte type = body.get();
+                long id = body.getLong();
+                nextId = Math.max(nextId, type == ID_WATERMARK ? id : id + 1);
+                switch (type) {
+                    case STARTED -> {
+                        MutableEntry entry = new MutableEntry(id);
+                        entry.startEpochMillis = body.getLong();
+                        entry.duration = body.getInt();
+                        entry.job = body.get() == 1;
+                        entry.name = readString(body);
+                        running.put(id, entry);
+                    }
+                    case PROGRESS -> {
+                        MutableEntry entry = running.get(id);
+                        if (entry != null) {
+                            entry.progress = body.getDouble();
+                        }
+                    }
+                    case COMPLETED -> {
+                        MutableEntry entry = running.remove(id);
+                        if (entry != null) {
+                            entry.result = readString(body);
+                            completed.put(id, entry);
+                            if (completed.size() > retainedResults) {
+                                Iterator<MutableEntry> oldest = completed.values().iterator();
+                                oldest.next();
+                                oldest.remove();
+                            }
+                        }
+                    }
+                    case CANCELLED -> running.remove(id);
+                    case ID_WATERMARK -> {
+                        // The id of the record is the next free id, nothing else to do
+                    }
+                    default -> throw new IOException("Unknown record type " + type + " in " + path);
+                }
+            }
+            if (buffer.hasRemaining()) {
+                log.warn("Dropped a torn or corrupted tail of {} bytes from {}", buffer.remaining(), path);
+            }
+        }
+        return new Recovery(running.values().stream().map(MutableEntry::toEntry).toList(),
+                completed.values().stream().map(MutableEntry::toEntry).toList(), nextId);
+    }
+
+    /**
+     * Rewrites the journal with only the recovered state, so that it doesn't grow without limits over restarts and
+     * while running.
+     */
+    private void compact(Recovery recovery) throws IOException {
+        Path compacted = path.resolveSibling(path.getFileName() + ".compacting");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<ByteBuffer> records = new ArrayList<>();
+            records.add(frame(body(ID_WATERMARK, recovery.nextId(), 0).flip()));
+            for (Entry entry : recovery.completed()) {
+                records.add(frame(startedBody(entry.id(), entry.startEpochMillis(), entry.duration(), entry.job(),
+                        entry.name()).flip()));
+                byte[] result = entry.result().getBytes(StandardCharsets.UTF_8);
+                records.add(frame(body(COMPLETED, entry.id(), 4 + result.length)
+                        .putInt(result.length).put(result).flip()));
+            }
+            for (Entry entry : recovery.running()) {
+                records.add(frame(startedBody(entry.id(), entry.startEpochMillis(), entry.duration(), entry.job(),
+                        entry.name()).flip()));
+                if (entry.progress() > 0) {
+                    records.add(frame(body(PROGRESS, entry.id(), 8).putDouble(entry.progress()).flip()));
+                }
+            }
+            ByteBuffer[] buffers = records.toArray(ByteBuffer[]::new);
+            long remaining = records.stream().mapToLong(ByteBuffer::remaining).sum();
+            while (remaining > 0) {
+                remaining -= out.write(buffers);
+            }
+            out.force(true);
+            recordCount = records.size();
+        }
+        Files.move(compacted, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        runningTasks = recovery.running().size();
+        completedTasks = recovery.completed().size();
+    }
+
+    private static ByteBuffer startedBody(long id, long startEpochMillis, int duration, boolean job, String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        return body(STARTED, id, 8 + 4 + 1 + 4 + nameBytes.length)
+                .putLong(startEpochMillis)
+                .putInt(duration)
+                .put((byte) (job ? 1 : 0))
+                .putInt(nameBytes.length)
+                .put(nameBytes);
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @PreDestroy
+    public synchronized void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        pendingWrites.add(END_OF_JOURNAL);
+        try {
+            writer.join(fsyncIntervalMillis + 5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class MutableEntry {
+        private final long id;
+        private String name;
+        private long startEpochMillis;
+        private int duration;
+        private boolean job;
+        private double progress;
+        private String result;
+
+        MutableEntry(long id) {
+            this.id = id;
+        }
+
+        Entry toEntry() {
+            return new Entry(id, name, startEpochMillis, duration, job, progress, result);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.example;
+
+import java.util.Collection;
+
+/**
+ * The backend that makes the tasks of {@link AppWideTasks} visible across the app. The tasks are always executed
+ * by the node that started them (their owner); the registry hands out the task ids, publishes the lifecycle of the
+ * owned tasks and provides the tasks owned by other nodes, if any.
+ * <p>
+ * {@link LocalTaskRegistry} is used for a single node. With tasks.cluster.members configured,
+ * {@link ClusteredTaskRegistry} shares the tasks between the replicas of the app.
+ */
+public interface TaskRegistry {
+
+    /**
+     * The node using the registry, called back by the registry e.g. when another node asks to cancel a task.
+     */
+    interface Owner {
+
+        /**
+         * @return the tasks currently owned (executed) by this node
+         */
+        Collection<Task> ownedTasks();
+
+        /**
+         * Cancels a task owned by this node, on the request of another node.
+         *
+         * @param id the id of the task
+         */
+        void cancel(long id);
+
+        /**
+         * Called when a task owned by another node has completed, before its subscribers on this node are
+         * notified.
+         *
+         * @param id the id of the task
+         * @param result the result of the task
+         */
+        void remoteCompleted(long id, String result);
+
+        /**
+         * Called when a task owned by another node was added or finished on this node, after the change.
+         *
+         * @param event the change
+         */
+        void remoteChanged(TaskEvent event);
+    }
+
+    /**
+     * Starts the registry, e.g. connects to the other nodes.
+     *
+     * @param owner the node using the registry
+     */
+    void start(Owner owner);
+
+    /**
+     * @return a new task id, unique across all nodes sharing the registry
+     */
+    long newId();
+
+    /**
+     * Makes sure ids below the given one are not handed out again, e.g. after recovering tasks from the journal.
+     *
+     * @param nextId the next unused id
+     */
+    void reserveIds(long nextId);
+
+    /**
+     * @param id the id of a task
+     * @return true if the task is owned by this node
+     */
+    boolean isOwned(long id);
+
+    /**
+     * Publishes a task started by this node. Its progress is published until it finishes.
+     */
+    void started(Task task);
+
+    /**
+     * @return false if {@link #started(Task)} does nothing, so that the tasks don't need to be materialized for it
+     * in the compact storage of {@link AppWideTasks}
+     */
+    default boolean publishesTasks() {
+        return true;
+    }
+
+    /**
+     * Publishes the completion of a task owned by this node.
+     */
+    void completed(long id, String result);
+
+    /**
+     * Publishes the cancellation of a task owned by this node.
+     */
+    void cancelled(long id);
+
+    /**
+     * Publishes the failure of a task owned by this node.
+     *
+     * @param error the message of the failure, passed to the subscribers on the other nodes
+     */
+    void failed(long id, String error);
+
+    /**
+     * @param id the id of a task owned by another node
+     * @return the running task, or null if there is no such task (any more)
+     */
+    Task getRemoteTask(long id);
+
+    /**
+     * Asks the owner of a task to cancel it. The cancellation happens asynchronously.
+     *
+     * @param id the id of a task owned by another node
+     * @return true if the task was known to be running
+     */
+    boolean cancelRemote(long id);
+
+    /**
+     * Returns a live, read-only view of all tasks, the given tasks owned by this node and the ones owned by other
+     * nodes.
+     *
+     * @param ownedTasks a live view of the tasks owned by this node
+     * @return all running tasks
+     */
+    Collection<Task> allTasks(Collection<Task> ownedTasks);
+
+    /**
+     * Stops the registry, e.g. disconnects from the other nodes.
+     */
+    void close();
+}
@@ -0,0 +1,22 @@
+package org.example;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Chooses the {@link TaskRegistry}: a {@link ClusteredTaskRegistry} if tasks.cluster.members is configured, a
+ * {@link LocalTaskRegistry} otherwise.
+ */
+@Configuration
+public class TaskRegistryConfiguration {
+
+    @Bean
+    public TaskRegistry taskRegistry(@Value("${tasks.cluster.members:}") String members,
+                                     @Value("${tasks.cluster.node-index:0}") int nodeIndex, TaskClock clock) {
+        if (members.isBlank()) {
+            return new LocalTaskRegistry();
+        }
+        return new ClusteredTaskRegistry(ClusteredTaskRegistry.parseMembers(members), nodeIndex, clock);
+    }
+}
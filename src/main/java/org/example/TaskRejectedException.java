@@ -0,0 +1,12 @@
+package org.example;
+
+/**
+ * Thrown when a new task can't be accepted, because the submitter already has too many tasks or the wait queue
+ * is full. The caller should report the overload to the user and try again later.
+ */
+public class TaskRejectedException extends RuntimeException {
+
+    public TaskRejectedException(String message) {
+        super(message);
+    }
+}
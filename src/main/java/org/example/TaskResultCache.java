@@ -0,0 +1,112 @@
+package org.example;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+/**
+ * Keeps the results of completed tasks for a while, so that users arriving (or reconnecting) after the
+ * completion can still get the actual result. Bounded both by time (TTL) and by the total size of the results.
+ * <p>
+ * The chunked results of streaming jobs are kept likewise, bounded by their total size in bytes, whether in memory
+ * or spilled to a file: a spilled result costs disk space until evicted. An evicted chunked result is closed, which
+ * deletes its file.
+ */
+@Component
+public class TaskResultCache {
+
+    /**
+     * Rough per entry overhead (key, entry and string objects) in the weight of an entry.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final Cache<Long, String> results;
+    private final Cache<Long, ChunkedResult> chunkedResults;
+    private final long spillThreshold;
+    private final Path spillDirectory;
+
+    public TaskResultCache(@Value("${tasks.results.ttl-minutes:60}") long ttlMinutes,
+                           @Value("${tasks.results.max-weight:50000000}") long maxWeight,
+                           @Value("${tasks.results.max-chunked-bytes:1073741824}") long maxChunkedBytes,
+                           @Value("${tasks.results.spill-threshold-bytes:1048576}") long spillThreshold,
+                           @Value("${tasks.results.spill-directory:${java.io.tmpdir}}") String spillDirectory,
+                           MeterRegistry meterRegistry) {
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = Path.of(spillDirectory);
+        Cache<Long, String> cache = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .maximumWeight(maxWeight)
+                .<Long, String>weigher((id, result) -> ENTRY_OVERHEAD + result.length())
+                .recordStats()
+                .build();
+        this.results = CaffeineCacheMetrics.monitor(meterRegistry, cache, "task-results");
+        Cache<Long, ChunkedResult> chunkedCache = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofMinutes(ttlMinutes))
+                .maximumWeight(maxChunkedBytes)
+                .<Long, ChunkedResult>weigher((id, result) -> (int) Math.min(Integer.MAX_VALUE,
+                        ENTRY_OVERHEAD + result.size()))
+                .<Long, ChunkedResult>removalListener((id, result, cause) -> {
+                    if (result != null) {
+                        result.close();
+                    }
+                })
+                .recordStats()
+                .build();
+        this.chunkedResults = CaffeineCacheMetrics.monitor(meterRegistry, chunkedCache, "task-chunked-results");
+    }
+
+    /**
+     * @return a new empty result, spilled to a file in the configured directory above the configured size
+     */
+    public ChunkedResult newChunkedResult() {
+        return new ChunkedResult(spillThreshold, spillDirectory);
+    }
+
+    public void put(long id, String result) {
+        results.put(id, result);
+    }
+
+    /**
+     * @param result a finished result, closed when evicted
+     */
+    public void putChunked(long id, ChunkedResult result) {
+        chunkedResults.put(id, result);
+    }
+
+    public void invalidate(long id) {
+        results.invalidate(id);
+        chunkedResults.invalidate(id);
+    }
+
+    /**
+     * @param id the id of a completed task
+     * @return the result of the task, or empty if the task is not completed or its result has already been evicted
+     */
+    public Optional<String> get(long id) {
+        return Optional.ofNullable(results.getIfPresent(id));
+    }
+
+    /**
+     * @param id the id of a completed streaming job
+     * @return the chunked result of the job, or empty if not available (any more)
+     */
+    public Optional<ChunkedResult> getChunked(long id) {
+        return Optional.ofNullable(chunkedResults.getIfPresent(id));
+    }
+
+    /**
+     * Deletes the files of the chunked results.
+     */
+    @PreDestroy
+    void close() {
+        chunkedResults.asMap().values().forEach(ChunkedResult::close);
+    }
+}
@@ -0,0 +1,82 @@
+package org.example;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The result subscriptions of a short lived consumer, e.g. a view, to the app wide tasks.
+ * <p>
+ * A task holds on to its subscribers until it finishes, which may take hours. As the callbacks of a subscription
+ * typically reference the view (and through it the whole UI), the subscriptions of a closed view must be released
+ * explicitly with {@link #unsubscribeAll()}, e.g. when the view is detached. Otherwise every view ever opened stays
+ * in the heap until the tasks it was subscribed to finish.
+ * <p>
+ * The subscriptions are keyed by the task id, as the same task may be fetched as different objects, e.g. the
+ * snapshots of the compact storage and the mirrors of the tasks of the other nodes of a cluster.
+ */
+public class TaskSubscriptions {
+
+    private final Map<Long, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+    /**
+     * Subscribes to the result of a task, unless already subscribed.
+     *
+     * @param task the task
+     * @param callback called with the result, with a CancellationException if the task is cancelled or with a
+     *                 TaskFailedException if its work failed. Not called if unsubscribed before the task finishes.
+     * @return true if subscribed, false if there already was a subscription to the task
+     */
+    public boolean subscribe(Task task, BiConsumer<String, Throwable> callback) {
+        if (subscriptions.containsKey(task.id())) {
+            return false;
+        }
+        Subscription subscription = new Subscription(task, task.subscribe());
+        if (subscriptions.putIfAbsent(task.id(), subscription) != null) {
+            task.unSubscribe(subscription.future());
+            return false;
+        }
+        subscription.future().whenComplete((result, error) -> {
+            subscriptions.remove(task.id(), subscription);
+            callback.accept(result, error);
+        });
+        return true;
+    }
+
+    public boolean isSubscribed(Task task) {
+        return subscriptions.containsKey(task.id());
+    }
+
+    /**
+     * @param task the task
+     * @return true if unsubscribed, false if there was no subscription to the task
+     */
+    public boolean unsubscribe(Task task) {
+        return unsubscribe(task.id());
+    }
+
+    private boolean unsubscribe(long id) {
+        Subscription subscription = subscriptions.remove(id);
+        if (subscription == null) {
+            return false;
+        }
+        // The task subscribed to, the one given may be another object for the same task
+        subscription.task().unSubscribe(subscription.future());
+        return true;
+    }
+
+    /**
+     * Releases all subscriptions, their callbacks are not called anymore.
+     */
+    public void unsubscribeAll() {
+        subscriptions.keySet().forEach(this::unsubscribe);
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    private record Subscription(Task task, CompletableFuture<String> future) {
+    }
+}
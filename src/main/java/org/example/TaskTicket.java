@@ -0,0 +1,47 @@
+package org.example;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A handle for a task submitted via admission control. The task may start right away or wait in a bounded queue
+ * until there is capacity for it.
+ */
+public class TaskTicket {
+
+    private final TaskAdmission admission;
+    private final String owner;
+    private final CompletableFuture<Task> task = new CompletableFuture<>();
+
+    TaskTicket(TaskAdmission admission, String owner) {
+        this.admission = admission;
+        this.owner = owner;
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return a future completed with the task, when it is actually started
+     */
+    public CompletableFuture<Task> getTask() {
+        return task;
+    }
+
+    /**
+     * @return the position of this ticket in the wait queue (1 being the next one to start), or 0 if the task has
+     * already been started (or the ticket has been cancelled)
+     */
+    public int getQueuePosition() {
+        return admission.getQueuePosition(this);
+    }
+
+    /**
+     * Withdraws the ticket from the wait queue, if the task hasn't started yet.
+     *
+     * @return true if the ticket was withdrawn, false if the task had already started
+     */
+    public boolean cancel() {
+        return admission.withdraw(this);
+    }
+}
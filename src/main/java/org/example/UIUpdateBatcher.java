@@ -0,0 +1,159 @@
+package org.example;
+
+import com.vaadin.flow.component.ComponentUtil;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.component.UIDetachedException;
+import com.vaadin.flow.server.Command;
+import com.vaadin.flow.server.ErrorEvent;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.stereotype.Component;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Collects UI updates from background threads and applies them in batches: all updates submitted during a short
+ * window are executed within a single {@link UI#access(Command)}, so they cost one session lock and one push
+ * instead of one each.
+ * <p>
+ * Use this instead of UI.access when a lot of updates may arrive at once, e.g. when hundreds of tasks complete at
+ * the same time. The updates are executed in the order they were submitted.
+ */
+public class UIUpdateBatcher {
+
+    public static final long DEFAULT_WINDOW_MILLIS = 50;
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            Thread.ofPlatform().name("ui-update-batcher").daemon().factory());
+
+    private static final LongAdder submittedUpdates = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+
+    private final Consumer<Command> access;
+    private final Consumer<RuntimeException> errorHandler;
+    private final long windowMillis;
+    private final Queue<Command> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    public UIUpdateBatcher(UI ui, long windowMillis) {
+        this(ui::access, e -> ui.getSession().getErrorHandler().error(new ErrorEvent(e)), windowMillis);
+    }
+
+    /**
+     * For simulating UIs, e.g. in load tests.
+     *
+     * @param access executes a command with the UI locked, like UI.access
+     * @param errorHandler handles the exceptions thrown by the UI updates
+     * @param windowMillis how long updates are collected before they are executed
+     */
+    UIUpdateBatcher(Consumer<Command> access, Consumer<RuntimeException> errorHandler, long windowMillis) {
+        this.access = access;
+        this.errorHandler = errorHandler;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Returns the batcher of the given UI, creating it if needed. Call this from the UI thread, e.g. in a view
+     * constructor, like you'd instantiate a UIFuture.
+     *
+     * @param ui the UI
+     * @return the batcher shared by all components in the UI
+     */
+    public static UIUpdateBatcher get(UI ui) {
+        UIUpdateBatcher batcher = ComponentUtil.getData(ui, UIUpdateBatcher.class);
+        if (batcher == null) {
+            batcher = new UIUpdateBatcher(ui, DEFAULT_WINDOW_MILLIS);
+            ComponentUtil.setData(ui, UIUpdateBatcher.class, batcher);
+        }
+        return batcher;
+    }
+
+    /**
+     * Queues a UI update. Can be called from any thread; the command is executed with the UI locked, within the
+     * next batch.
+     *
+     * @param command the UI update
+     */
+    public void access(Command command) {
+        pending.add(command);
+        submittedUpdates.increment();
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduler.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flush() {
+        // Reset before draining, updates arriving during the flush schedule the next batch
+        flushScheduled.set(false);
+        try {
+            access.accept(() -> {
+                Command command;
+                boolean executed = false;
+                while ((command = pending.poll()) != null) {
+                    executed = true;
+                    try {
+                        command.execute();
+                    } catch (RuntimeException e) {
+                        errorHandler.accept(e);
+                    }
+                }
+                if (executed) {
+                    flushes.increment();
+                }
+            });
+        } catch (UIDetachedException e) {
+            // The user has gone, nobody is interested in these updates anymore
+            pending.clear();
+        }
+    }
+
+    /**
+     * @return the number of UI updates submitted to all batchers
+     */
+    public static long getSubmittedUpdates() {
+        return submittedUpdates.sum();
+    }
+
+    /**
+     * @return the number of batches (UI.access calls and pushes) actually executed by all batchers
+     */
+    public static long getFlushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return the number of UI updates that didn't need an own UI.access and push, because they were merged
+     * into a batch with other updates
+     */
+    public static long getMergedUpdates() {
+        return Math.max(0, getSubmittedUpdates() - getFlushes());
+    }
+
+    /**
+     * Publishes the batching counters of all UIs.
+     */
+    @Component
+    static class Metrics implements MeterBinder {
+
+        @Override
+        public void bindTo(MeterRegistry registry) {
+            FunctionCounter.builder("ui.updates.submitted", submittedUpdates, LongAdder::sum)
+                    .description("UI updates submitted to the batchers")
+                    .register(registry);
+            FunctionCounter.builder("ui.updates.batches", flushes, LongAdder::sum)
+                    .description("Batches of UI updates executed, each costing one UI.access and push")
+                    .register(registry);
+            FunctionCounter.builder("ui.updates.merged", this, metrics -> getMergedUpdates())
+                    .description("UI updates merged into a batch with other updates")
+                    .register(registry);
+        }
+    }
+}
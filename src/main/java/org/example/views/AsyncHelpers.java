@@ -12,7 +12,9 @@ import com.vaadin.flow.component.select.Select;
 import com.vaadin.flow.router.Route;
 import org.example.CodeSnippet;
 import org.example.DefaultLayout;
+import org.example.DurationEstimator;
 import org.example.SlowService;
+import org.example.TaskExecutors;
 import org.vaadin.firitin.appframework.MenuItem;
 import org.vaadin.firitin.components.RichText;
 import org.vaadin.firitin.components.button.ActionButton;
@@ -23,13 +25,16 @@ import org.vaadin.firitin.components.progressbar.VProgressBar;
 import org.vaadin.firitin.fields.EnumSelect;
 import org.vaadin.firitin.layouts.HorizontalFloatLayout;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 @Route(layout = DefaultLayout.class)
 @MenuItem(icon = VaadinIcon.ACADEMY_CAP, order = 1070)
 public class AsyncHelpers extends VerticalLayout {
 
-    public AsyncHelpers(SlowService slowService) {
+    public AsyncHelpers(SlowService slowService, TaskExecutors taskExecutors, DurationEstimator estimator) {
         add(new H1("Less error prone boilerplate code with helper classes"));
 
         add(new RichText().withMarkDown("""
@@ -82,7 +87,7 @@ public class AsyncHelpers extends VerticalLayout {
         var disableUI = new VCheckBox("Disable UI during task");
         var builtInProgressbar = new VCheckBox("Built in progress bar").withValue(true)
                 .withTooltip("On by default, implicitly off if preUiAction defined (like dialog in this example). Toggle this to enable explicitly.");
-        var estimate = new VCheckBox("Define estimated time to 4 secs (really 5)");
+        var estimate = new VCheckBox("Define estimated time (learned from previous runs, 4 secs before them)");
         add(new HorizontalFloatLayout(showDialog, showNotificationOnStart, disableUI, builtInProgressbar, estimate));
 
         Dialog taskInProgressDialog = new Dialog();
@@ -95,9 +100,10 @@ public class AsyncHelpers extends VerticalLayout {
         taskInProgressDialog.add(new Paragraph("This dialog is optional and built in preTaskAction. You can move this " +
                 "dialog around and keep doing other things.."));
 
+        Paragraph estimateInDialog = new Paragraph();
         VProgressBar progressBarInDialog = new VProgressBar();
         progressBarInDialog.setIndeterminate(true);
-        taskInProgressDialog.add(progressBarInDialog);
+        taskInProgressDialog.add(estimateInDialog, progressBarInDialog);
         taskInProgressDialog.add(new Button("Test UI button", event -> {
             Notification.show("I'm alive!");
         }));
@@ -118,18 +124,30 @@ public class AsyncHelpers extends VerticalLayout {
                 actionButton.updateProgressAsync(progress, 0, 1);
             });
         };
+        Function<Supplier<String>, String> actionName = s -> s == basicSlowAction
+                ? "Basic slow action" : "Trackable slow action";
         Select<Supplier<String>> supplierSelect = new Select<>();
         supplierSelect.setLabel("Select action:");
         supplierSelect.setItems(basicSlowAction, trackableSlowAction);
-        supplierSelect.setItemLabelGenerator(s -> s == basicSlowAction ? "Basic slow action" : "Trackable slow action");
+        supplierSelect.setItemLabelGenerator(actionName::apply);
+        // The action currently running, kept to be able to really stop it (with a thread interrupt) on cancel
+        AtomicReference<CompletableFuture<String>> runningAction = new AtomicReference<>();
         supplierSelect.addValueChangeListener(event -> {
-            actionButton.setAction(event.getValue());
+            Supplier<String> action = event.getValue();
+            // A CompletableFuture.cancel(true) doesn't interrupt the thread doing the work, this helper's does
+            actionButton.setCompletableFutureAction(() -> {
+                CompletableFuture<String> future = taskExecutors.supplyAsync(action);
+                runningAction.set(future);
+                // Learns how long the action takes, for the estimates of the next runs
+                return estimator.time(actionName.apply(action), future);
+            });
         });
         supplierSelect.setValue(basicSlowAction);
         add(supplierSelect);
 
-        // Optionally you can provide an Executor that will be used to run the task
-        // nonBlockingTaskButton.setExecutor(Executors.newSingleThreadExecutor());
+        // Optionally you can provide an Executor that will be used to run the task. Here virtual threads (by
+        // default) instead of the common ForkJoinPool, which should not be blocked with slow calls
+        actionButton.setExecutor(taskExecutors.getExecutor());
 
         // The task can also return a CompletableFuture
         //nonBlockingTaskButton.setCompletableFutureAction(() -> computeSlowString());
@@ -150,12 +168,21 @@ public class AsyncHelpers extends VerticalLayout {
                 UI.getCurrent().setEnabled(false);
             }
             if (estimate.getValue()) {
+                // The median of the previous runs, a guess before there are any
+                var learned = estimator.getEstimate(actionName.apply(supplierSelect.getValue()));
+                int estimatedMillis = learned.map(e -> (int) e.p50Millis()).orElse(4000);
+                estimateInDialog.setText(learned
+                        .map(e -> "Usually takes %.1f s, 9 out of 10 runs take at most %.1f s."
+                                .formatted(e.p50Millis() / 1000.0, e.p90Millis() / 1000.0))
+                        .orElse("Should take about 4 s."));
                 if(builtInProgressbar.getValue()) {
-                    actionButton.setEstimatedDuration(4000);
+                    actionButton.setEstimatedDuration(estimatedMillis);
                 }
-                progressBarInDialog.setMax(4000);
+                progressBarInDialog.setMax(estimatedMillis);
                 progressBarInDialog.animateToEstimate();
                 progressBarInDialog.setIndeterminate(false);
+            } else {
+                estimateInDialog.setText("");
             }
             if(builtInProgressbar.getValue()) {
                 actionButton.setShowProgressBar(builtInProgressbar.getValue());
@@ -174,6 +201,11 @@ public class AsyncHelpers extends VerticalLayout {
         add(actionButton);
 
         taskInProgressDialog.add(new Button("Cancel", event -> {
+            CompletableFuture<String> running = runningAction.getAndSet(null);
+            if (running != null) {
+                // Interrupts the slow action, releasing its thread and stopping the progress updates
+                running.cancel(true);
+            }
             actionButton.getCompletableFuture().cancel(true);
             taskInProgressDialog.close();
         }));
@@ -213,8 +245,9 @@ public class AsyncHelpers extends VerticalLayout {
         UIFuture uiFuture = new UIFuture();
         // CodeSnippetEnd: instantiatingUIFuture
 
-        // You can set the executor for the task, but most often not needed, JVM defaults are good for most cases
-        // uiFuture.setExecutor(Executors.newSingleThreadExecutor());
+        // You can set the executor for the task. JVM defaults (the common ForkJoinPool) are fine for short
+        // computations, but blocking calls (like the sleeps below) should run in e.g. virtual threads
+        uiFuture.setExecutor(taskExecutors.getExecutor());
 
         enum SlowAction {
             Runnable,
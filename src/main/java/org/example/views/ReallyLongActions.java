@@ -1,41 +1,69 @@
 package org.example.views;
 
+import com.vaadin.flow.component.AttachEvent;
+import com.vaadin.flow.component.DetachEvent;
+import com.vaadin.flow.component.UI;
 import com.vaadin.flow.component.button.Button;
-import com.vaadin.flow.component.checkbox.Checkbox;
+import com.vaadin.flow.component.combobox.ComboBox;
+import com.vaadin.flow.component.html.Anchor;
 import com.vaadin.flow.component.html.H1;
 import com.vaadin.flow.component.icon.VaadinIcon;
 import com.vaadin.flow.component.notification.Notification;
 import com.vaadin.flow.component.orderedlayout.VerticalLayout;
 import com.vaadin.flow.component.textfield.IntegerField;
+import com.vaadin.flow.component.textfield.TextField;
+import com.vaadin.flow.data.provider.CallbackDataProvider;
+import com.vaadin.flow.data.provider.QuerySortOrder;
+import com.vaadin.flow.data.provider.SortDirection;
+import com.vaadin.flow.data.renderer.LitRenderer;
+import com.vaadin.flow.data.value.ValueChangeMode;
 import com.vaadin.flow.router.Route;
+import com.vaadin.flow.server.StreamResource;
+import com.vaadin.flow.server.VaadinSession;
 import org.example.AppWideTasks;
+import org.example.ChunkedResult;
 import org.example.DefaultLayout;
+import org.example.SlowService;
 import org.example.Task;
+import org.example.TaskEvent;
+import org.example.TaskFailedException;
+import org.example.TaskFilter;
+import org.example.TaskRejectedException;
+import org.example.TaskSubscriptions;
+import org.example.TaskTicket;
+import org.example.UIUpdateBatcher;
 import org.vaadin.firitin.appframework.MenuItem;
 import org.vaadin.firitin.components.RichText;
-import org.vaadin.firitin.components.button.UIFuture;
 import org.vaadin.firitin.components.grid.VGrid;
-import org.vaadin.firitin.components.progressbar.VProgressBar;
 import org.vaadin.firitin.layouts.HorizontalFloatLayout;
 
-import java.util.HashMap;
+import java.io.InputStream;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.CompletableFuture;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 @Route(layout = DefaultLayout.class)
 @MenuItem(icon = VaadinIcon.CALENDAR_CLOCK, order = 1070)
 public class ReallyLongActions extends VerticalLayout {
 
 
-    private final UIFuture uiFuture;
-    Map<Task, VProgressBar> taskToProgressBar = new WeakHashMap<>();
+    private final UIUpdateBatcher uiUpdates;
+    private final AppWideTasks appWideTasks;
     private TaskGrid grid;
-    private CompletableFuture<Void> future;
-    private Map<Task, CompletableFuture<String>> taskToSubscribtion = new HashMap<>();
+    /**
+     * Released on detach, a long running task must not keep closed views in the memory.
+     */
+    private final TaskSubscriptions subscriptions = new TaskSubscriptions();
+    private final HorizontalFloatLayout downloads = new HorizontalFloatLayout();
 
-    public ReallyLongActions(AppWideTasks appWideTasks) {
+    public ReallyLongActions(AppWideTasks appWideTasks, SlowService slowService) {
+        this.appWideTasks = appWideTasks;
         add(new H1("Very long action"));
         add(new RichText().withMarkDown("""
                 What it your actions can last longer than your sessions? If they are system wide, shared with others
@@ -43,8 +71,13 @@ public class ReallyLongActions extends VerticalLayout {
                 that kind of scenario. You'll essentially need to have some sort of API to know currently running
                 actions and to subscribe to their results (and/or progress). The service in this example allows to 
                 hook for the result with a CompletableFuture based API, so hooking to some UI action with UiFuture is
-                rather easy. When arriving to the view you are automatically registered to currently running actions
-                and will get notified when they are done. The service keeps at least one task running all the time.
+                rather easy. As this view may get lots of results at once, the UI updates are instead collected with
+                a small batching helper, that applies them in a single UI.access (and push). You are automatically
+                registered to the actions you start and to the running actions listed in the view, and will get
+                notified when they are done. The service keeps at least one task running all the time. Tasks can
+                also be cancelled, which for the "real jobs" interrupts the thread doing the work. The report export
+                is a job with a result too large for a String: it is written in chunks, spilled to a temporary file
+                when large, and can be downloaded already while it is being generated.
                 
                 Alternatively you could publish application wide events and listen to them in the UI. In this case
                 you would then be on your own with UI synchronization. Note, that e.g. Spring's events are synchronous
@@ -52,14 +85,9 @@ public class ReallyLongActions extends VerticalLayout {
                 not to block other listeners receiving the event (until all UIs in the app are updated).               
                 """));
 
-        uiFuture = new UIFuture();
+        // Lots of tasks may complete at once, batch their UI updates to a single UI.access and push
+        uiUpdates = UIUpdateBatcher.get(UI.getCurrent());
         grid = new TaskGrid(appWideTasks);
-        var activeTasks = grid.listTasks();
-        activeTasks.forEach(task -> {
-            subscribeForResult(task);
-        });
-
-        grid.listTasks();
 
         IntegerField taskDuration = new IntegerField("Task duration (seconds)");
         taskDuration.setMin(1);
@@ -68,74 +96,276 @@ public class ReallyLongActions extends VerticalLayout {
         add(new HorizontalFloatLayout(
                         taskDuration,
                         new Button("Start new task", event -> {
-                            var task = appWideTasks.startTask("User initiated task", taskDuration.getValue());
-                            subscribeForResult(task);
-                            grid.listTasks();
+                            submit(() -> appWideTasks.submitTask(sessionId(), "User initiated task",
+                                    taskDuration.getValue()));
                         }),
-                        new Button("Refresh tasks", event -> {
-                            grid.listTasks();
+                        new Button("Start real job", event -> {
+                            // A job doing actual work in a separate thread, reporting its real progress
+                            submit(() -> appWideTasks.submitJob(sessionId(), "User initiated job", 5,
+                                    progressListener -> slowService.slowBlockingMethodWithNotifier(progressListener)));
+                        }),
+                        new Button("Export report", event -> {
+                            // A job streaming a large result in chunks, downloadable while it is generated
+                            submit(() -> appWideTasks.submitStreamingJob(sessionId(), "Report export", 5,
+                                    slowService::generateReport), this::addDownload);
                         })
                 )
         );
+        add(downloads);
+
+        TextField nameFilter = new TextField("Filter by name");
+        nameFilter.setValueChangeMode(ValueChangeMode.LAZY);
+        ComboBox<Task.Status> statusFilter = new ComboBox<>("Status", Task.Status.values());
+        statusFilter.setClearButtonVisible(true);
+        // Filtered on the server, only the matching rows are fetched
+        nameFilter.addValueChangeListener(event ->
+                grid.setFilter(new TaskFilter(nameFilter.getValue(), statusFilter.getValue())));
+        statusFilter.addValueChangeListener(event ->
+                grid.setFilter(new TaskFilter(nameFilter.getValue(), statusFilter.getValue())));
+        add(new HorizontalFloatLayout(nameFilter, statusFilter));
 
         add(grid);
     }
 
-    public VProgressBar getProgressBar(Task task) {
-        return taskToProgressBar.computeIfAbsent(task, t -> {
-            VProgressBar progressBar = new VProgressBar();
-            progressBar.setPrepareForOverdueInAnimation(false); // This demo has good estimates
-            return progressBar;
+    /**
+     * Submits a task via the admission control of the service, which limits the tasks per session and globally.
+     */
+    private void submit(Supplier<TaskTicket> submission) {
+        submit(submission, task -> {
         });
     }
 
+    /**
+     * @param started called in the UI thread once the task has started
+     */
+    private void submit(Supplier<TaskTicket> submission, Consumer<Task> started) {
+        try {
+            TaskTicket ticket = submission.get();
+            int queuePosition = ticket.getQueuePosition();
+            if (queuePosition > 0) {
+                Notification.show("The server is busy, your task is queued at position " + queuePosition);
+            }
+            // The grid shows the task once it is added, no need to refresh it here
+            ticket.getTask().thenAccept(task -> uiUpdates.access(() -> {
+                subscribeForResult(task);
+                started.accept(task);
+            }));
+        } catch (TaskRejectedException e) {
+            Notification.show("Task rejected: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Offers the result of a streaming job as a download. The file is streamed from the chunks of the result, no
+     * matter if they are in memory or spilled to disk, and already while the report is being generated.
+     */
+    private void addDownload(Task task) {
+        StreamResource resource = new StreamResource("report-" + task.id() + ".csv",
+                () -> appWideTasks.getChunkedResult(task.id())
+                        .map(ChunkedResult::openStream)
+                        .orElseGet(InputStream::nullInputStream));
+        Anchor download = new Anchor(resource, "Download report #" + task.id());
+        download.getElement().setAttribute("download", true);
+        downloads.add(download);
+    }
+
+    private static String sessionId() {
+        return VaadinSession.getCurrent().getSession().getId();
+    }
+
+    @Override
+    protected void onDetach(DetachEvent detachEvent) {
+        subscriptions.unsubscribeAll();
+        super.onDetach(detachEvent);
+    }
+
     private void subscribeForResult(Task task) {
-        CompletableFuture<String> subscription = task.subscribe();
-        taskToSubscribtion.put(task, subscription);
-        uiFuture.of(subscription).thenAccept(result -> {
-            Notification.show("Task completed: " + result);
-            getProgressBar(task).finish();
-            taskToSubscribtion.remove(task);
-        });
+        if (!isAttached()) {
+            // E.g. a queued task started after the user left the view
+            return;
+        }
+        subscriptions.subscribe(task, (result, error) -> uiUpdates.access(() -> {
+            if (error == null) {
+                Notification.show("Task completed: " + result);
+            } else if (error instanceof TaskFailedException) {
+                Notification.show(error.getMessage());
+            } else {
+                Notification.show("Task cancelled: " + task.name());
+            }
+        }));
     }
 
+    /**
+     * Lists the running and the recently finished tasks lazily, straight from the service: only the rows in the
+     * viewport are fetched (sorted and filtered on the server) and sent to the browser. The progress, subscription
+     * and cancel columns are rendered in the browser with LitRenderers, so no server side components are created
+     * for the rows. The running tasks are subscribed to when their row is first fetched, so the view never
+     * subscribes to all tasks of the app.
+     * <p>
+     * The grid follows the changes in the tasks while attached: the rows of the tasks whose progress changed are
+     * refreshed individually, and only the rows in the viewport are actually sent to the browser. Changes are
+     * collected for a short while and applied (and pushed) at once, a task added or removed re-fetches the page.
+     */
     public class TaskGrid extends VGrid<Task> {
 
+        /**
+         * How long the changes in the tasks are collected before updating the grid.
+         */
+        private static final long UPDATE_WINDOW_MILLIS = 500;
+
+        private static final Map<String, Comparator<Task>> SORT_ORDERS = Map.of(
+                "id", Comparator.comparingLong(Task::id),
+                "name", Comparator.comparing(Task::name),
+                "start", Comparator.comparing(Task::start),
+                "duration", Comparator.comparingInt(Task::duration));
+
         private final AppWideTasks appWideTasks;
+        private TaskFilter filter = TaskFilter.ALL;
+        private UIUpdateBatcher gridUpdates;
+        private Runnable removeTaskListener;
+        // Written by the threads changing the tasks, drained in the UI thread
+        private final Map<Long, Task> changedTasks = new ConcurrentHashMap<>();
+        /**
+         * The running tasks shown so far, subscribed to when first shown. Not again, e.g. after the user has
+         * unsubscribed. Forgotten when the task finishes.
+         */
+        private final Set<Long> shownTasks = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean rowsChanged = new AtomicBoolean();
+        private final AtomicBoolean updateScheduled = new AtomicBoolean();
 
         public TaskGrid(AppWideTasks appWideTasks) {
             super(Task.class);
+            // The bean properties (e.g. completed) would be columns too, only the ones below are shown
+            removeAllColumns();
             this.appWideTasks = appWideTasks;
-            getColumnByKey("listeners").setVisible(false);
-
-            addComponentColumn(task -> {
-                VProgressBar progressBar = getProgressBar(task);
-                progressBar.animateToEstimate(task.start(), task.start().plusSeconds(task.duration()));
-                return progressBar;
-            }).setHeader("Progress");
-            addComponentColumn(task -> {
-                var subscribedCheckbox = new Checkbox();
-                subscribedCheckbox.setValue(taskToSubscribtion.containsKey(task));
-                subscribedCheckbox.addValueChangeListener(event -> {
-                    if (event.getValue()) {
-                        subscribeForResult(task);
-                    } else {
-                        CompletableFuture<String> subscription = taskToSubscribtion.remove(task);
-                        task.unSubscribe(subscription);
-                        Notification.show("Unsubscribed of task events");
-                    }
-                    listTasks();
-                });
-                return subscribedCheckbox;
-            }).setHeader("Subscribed for result");
+            addColumn(Task::id).setHeader("Id").setSortProperty("id");
+            addColumn(Task::name).setHeader("Name").setSortProperty("name");
+            addColumn(Task::start).setHeader("Start").setSortProperty("start");
+            addColumn(Task::duration).setHeader("Duration").setSortProperty("duration");
+            addColumn(Task::status).setHeader("Status");
+
+            addColumn(LitRenderer.<Task>of("<vaadin-progress-bar .value=${item.progress}></vaadin-progress-bar>")
+                    .withProperty("progress", Task::progressValue)).setHeader("Progress");
+            addColumn(LitRenderer.<Task>of("""
+                            <vaadin-checkbox ?checked=${item.subscribed} ?disabled=${item.finished}
+                                    @change=${toggleSubscription}>
+                            </vaadin-checkbox>""")
+                    .withProperty("subscribed", subscriptions::isSubscribed)
+                    .withProperty("finished", Task::isCompleted)
+                    .withFunction("toggleSubscription", task -> {
+                        if (subscriptions.unsubscribe(task)) {
+                            Notification.show("Unsubscribed of task events");
+                        } else {
+                            subscribeForResult(task);
+                        }
+                        refreshTask(task);
+                    })).setHeader("Subscribed for result");
+            addColumn(LitRenderer.<Task>of(
+                            "<vaadin-button ?disabled=${item.finished} @click=${cancel}>Cancel</vaadin-button>")
+                    .withProperty("finished", Task::isCompleted)
+                    .withFunction("cancel", task -> appWideTasks.cancelTask(task.id()))).setHeader("Cancel");
 
             getColumns().forEach(column -> column.setAutoWidth(true));
+            // Identified by the id, the same task may be fetched as different objects, e.g. the snapshots of the
+            // compact storage and the mirrors of the tasks of the other nodes of a cluster
+            setItems(new CallbackDataProvider<Task, Void>(query -> {
+                        List<Task> page = appWideTasks.findTasks(filter, toComparator(query.getSortOrders()),
+                                query.getOffset(), query.getLimit());
+                        // Only the rows fetched for the viewport, not all tasks of the app
+                        page.forEach(this::subscribeWhenFirstShown);
+                        return page.stream();
+                    },
+                    query -> appWideTasks.countTasks(filter),
+                    Task::id));
+        }
+
+        @Override
+        protected void onAttach(AttachEvent attachEvent) {
+            super.onAttach(attachEvent);
+            gridUpdates = new UIUpdateBatcher(attachEvent.getUI(), UPDATE_WINDOW_MILLIS);
+            removeTaskListener = appWideTasks.addTaskListener(this::taskChanged);
+            // Changes while detached were missed
+            refresh();
+        }
+
+        @Override
+        protected void onDetach(DetachEvent detachEvent) {
+            removeTaskListener.run();
+            // The view releases its subscriptions, the rows shown again after attaching are subscribed to again
+            shownTasks.clear();
+            super.onDetach(detachEvent);
+        }
+
+        private void subscribeWhenFirstShown(Task task) {
+            if (!task.isCompleted() && shownTasks.add(task.id())) {
+                subscribeForResult(task);
+            }
+        }
+
+        /**
+         * Collects a change, called by the thread changing the task.
+         */
+        private void taskChanged(TaskEvent event) {
+            if (event.type() == TaskEvent.Type.PROGRESS) {
+                changedTasks.put(event.task().id(), event.task());
+            } else {
+                if (event.type() != TaskEvent.Type.ADDED) {
+                    shownTasks.remove(event.task().id());
+                }
+                rowsChanged.set(true);
+            }
+            if (updateScheduled.compareAndSet(false, true)) {
+                gridUpdates.access(this::applyChanges);
+            }
+        }
+
+        private void applyChanges() {
+            // Reset before draining, changes arriving meanwhile schedule the next update
+            updateScheduled.set(false);
+            if (rowsChanged.getAndSet(false)) {
+                changedTasks.clear();
+                refresh();
+                return;
+            }
+            for (Iterator<Task> iterator = changedTasks.values().iterator(); iterator.hasNext(); ) {
+                Task task = iterator.next();
+                // Removed before the refresh, so a change arriving meanwhile is not lost
+                iterator.remove();
+                refreshTask(task);
+            }
+        }
+
+        private static Comparator<Task> toComparator(List<QuerySortOrder> sortOrders) {
+            Comparator<Task> comparator = null;
+            for (QuerySortOrder sortOrder : sortOrders) {
+                Comparator<Task> next = SORT_ORDERS.get(sortOrder.getSorted());
+                if (sortOrder.getDirection() == SortDirection.DESCENDING) {
+                    next = next.reversed();
+                }
+                comparator = comparator == null ? next : comparator.thenComparing(next);
+            }
+            // By id by default and to break ties, so the pages are stable
+            Comparator<Task> byId = SORT_ORDERS.get("id");
+            return comparator == null ? byId : comparator.thenComparing(byId);
+        }
+
+        public void setFilter(TaskFilter filter) {
+            this.filter = filter;
+            refresh();
+        }
+
+        /**
+         * Fetches the tasks again, e.g. after new tasks have been started.
+         */
+        public void refresh() {
+            getDataProvider().refreshAll();
         }
 
-        public List<Task> listTasks() {
-            List<Task> activeTasks = appWideTasks.getActiveTasks();
-            setItems(activeTasks);
-            return activeTasks;
+        /**
+         * Updates the row of a task, if it is currently shown. Rows outside the viewport are not sent.
+         */
+        public void refreshTask(Task task) {
+            getDataProvider().refreshItem(task);
         }
     }
 
@@ -0,0 +1,169 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests spilling the chunks to a file, reading the result while it is written and releasing it.
+ */
+@Timeout(10)
+class ChunkedResultTest {
+
+    private static final int SPILL_THRESHOLD = 10;
+
+    private Path spillDirectory;
+
+    @BeforeEach
+    void createSpillDirectory() throws IOException {
+        spillDirectory = Files.createTempDirectory("chunked-result-test");
+    }
+
+    @AfterEach
+    void deleteSpillDirectory() throws IOException {
+        for (Path file : spilledFiles()) {
+            Files.delete(file);
+        }
+        Files.delete(spillDirectory);
+    }
+
+    private List<Path> spilledFiles() throws IOException {
+        try (Stream<Path> files = Files.list(spillDirectory)) {
+            return files.toList();
+        }
+    }
+
+    private static ByteBuffer bytes(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer chunk) {
+        return StandardCharsets.UTF_8.decode(chunk).toString();
+    }
+
+    @Test
+    void spillsToFileAboveTheThreshold() throws IOException {
+        ChunkedResult result = new ChunkedResult(SPILL_THRESHOLD, spillDirectory);
+        result.append(bytes("123456"));
+        result.append(bytes("7890"));
+        // Exactly at the threshold, still in memory
+        assertFalse(result.isSpilled());
+        assertEquals(10, result.memorySize());
+        assertTrue(spilledFiles().isEmpty());
+
+        result.append(bytes("A"));
+        assertTrue(result.isSpilled());
+        assertEquals(0, result.memorySize());
+        assertEquals(11, result.size());
+        assertEquals(1, spilledFiles().size());
+        assertEquals("1234567890A", Files.readString(spilledFiles().get(0)));
+
+        // The chunks appended before the spill are read from the file too
+        assertEquals(3, result.chunkCount());
+        assertEquals("123456", text(result.chunk(0)));
+        assertEquals("7890", text(result.chunk(1)));
+        assertEquals("A", text(result.chunk(2)));
+        result.close();
+    }
+
+    @Test
+    void appendingToFinishedResultFails() {
+        ChunkedResult result = new ChunkedResult(SPILL_THRESHOLD, spillDirectory);
+        result.append(bytes("chunk"));
+        result.finish();
+
+        assertTrue(result.isFinished());
+        assertThrows(IllegalStateException.class, () -> result.append(bytes("more")));
+        result.close();
+        assertThrows(IllegalStateException.class, () -> result.append(bytes("more")));
+    }
+
+    @Test
+    void streamReadsChunksAppendedWhileReading() throws Exception {
+        ChunkedResult result = new ChunkedResult(SPILL_THRESHOLD, spillDirectory);
+        result.append(bytes("first "));
+        CompletableFuture<String> read = CompletableFuture.supplyAsync(() -> readAll(result.openStream()));
+
+        // The reader waits for the next chunks until the result is finished
+        result.append(bytes("second "));
+        assertWaiting(read);
+        // Spilled while the reader is reading
+        result.append(bytes("third "));
+        assertTrue(result.isSpilled());
+        assertWaiting(read);
+        result.append(bytes("fourth"));
+        result.finish();
+
+        assertEquals("first second third fourth", read.get(5, TimeUnit.SECONDS));
+        // A stream opened after finishing reads the whole result right away
+        assertEquals("first second third fourth", readAll(result.openStream()));
+        result.close();
+    }
+
+    @Test
+    void closeWakesBlockedReadersAndDeletesTheFile() throws Exception {
+        ChunkedResult result = new ChunkedResult(SPILL_THRESHOLD, spillDirectory);
+        result.append(bytes("more than the threshold"));
+        assertEquals(1, spilledFiles().size());
+        CompletableFuture<String> read = CompletableFuture.supplyAsync(() -> readAll(result.openStream()));
+        assertWaiting(read);
+
+        result.close();
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> read.get(5, TimeUnit.SECONDS));
+        assertInstanceOf(IOException.class, failure.getCause().getCause());
+        assertTrue(spilledFiles().isEmpty());
+        assertThrows(IllegalStateException.class, () -> result.chunk(0));
+        assertEquals(0, result.chunkCount());
+        // Closing again is a no-op
+        result.close();
+    }
+
+    @Test
+    void chunkReturnedBeforeCloseStaysReadable() {
+        ChunkedResult result = new ChunkedResult(SPILL_THRESHOLD, spillDirectory);
+        result.append(bytes("more than the threshold"));
+        ByteBuffer chunk = result.chunk(0);
+
+        result.close();
+        assertEquals("more than the threshold", text(chunk));
+    }
+
+    private static void assertWaiting(CompletableFuture<String> read) throws InterruptedException {
+        Thread.sleep(100);
+        assertFalse(read.isDone(), "The reader should wait for the next chunks");
+    }
+
+    private static String readAll(InputStream stream) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4];
+        try (stream) {
+            for (int read; (read = stream.read(buffer)) != -1; ) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
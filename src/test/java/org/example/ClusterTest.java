@@ -0,0 +1,208 @@
+package org.example;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Starts a cluster of application contexts within this JVM, connected over the loopback interface, and checks that
+ * the nodes share their tasks: tasks are listed and can be subscribed to on all nodes, completions and
+ * cancellations reach the other nodes, the ids are unique across the cluster and the tasks of a node that goes
+ * away are dropped by the others.
+ * <p>
+ * Only the task services are started on each node, without the web server.
+ */
+@Timeout(120)
+class ClusterTest {
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private static final List<ConfigurableApplicationContext> cluster = new ArrayList<>();
+    private static List<AppWideTasks> nodes;
+
+    @BeforeAll
+    static void startCluster() {
+        // Several contexts in one JVM, a restart by devtools would stop them all
+        System.setProperty("spring.devtools.restart.enabled", "false");
+        cluster.addAll(startNodes(3));
+        nodes = cluster.stream().map(context -> context.getBean(AppWideTasks.class)).toList();
+    }
+
+    @AfterAll
+    static void stopCluster() {
+        cluster.forEach(ConfigurableApplicationContext::close);
+    }
+
+    /**
+     * @return the contexts of the nodes, in the order of the node indexes
+     */
+    private static List<ConfigurableApplicationContext> startNodes(int count) {
+        String members = freePorts(count).stream()
+                .map(port -> "127.0.0.1:" + port)
+                .collect(Collectors.joining(","));
+        List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            contexts.add(new SpringApplicationBuilder(Node.class)
+                    .web(WebApplicationType.NONE)
+                    .run("--tasks.cluster.members=" + members,
+                            "--tasks.cluster.node-index=" + i,
+                            "--tasks.journal.path="));
+        }
+        return contexts;
+    }
+
+    private static List<Integer> freePorts(int count) {
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets.add(new ServerSocket(0));
+            }
+            return sockets.stream().map(ServerSocket::getLocalPort).toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            for (ServerSocket socket : sockets) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Only the port number was needed
+                }
+            }
+        }
+    }
+
+    @Test
+    void tasksAreListedOnAllNodes() {
+        Task task = nodes.get(0).startTask("Listed task", 60);
+
+        await("task is listed on all nodes", () -> nodes.stream().allMatch(node -> node.getTask(task.id()) != null
+                && node.getActiveTasks().stream().anyMatch(t -> t.id() == task.id())
+                && node.findTasks(TaskFilter.ALL, Comparator.comparingLong(Task::id), 0, 1000).stream()
+                .anyMatch(t -> t.id() == task.id())));
+        nodes.get(0).cancelTask(task.id());
+    }
+
+    @Test
+    void completionIsForwardedToTheOtherNodes() throws Exception {
+        AppWideTasks other = nodes.get(2);
+        Task task = nodes.get(0).startTask("Completing task", 1);
+        await("task is visible on the other node", () -> other.getTask(task.id()) != null);
+
+        CompletableFuture<String> remoteSubscription = other.subscribe(task.id());
+        String result = remoteSubscription.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        await("completed task is removed on all nodes",
+                () -> nodes.stream().allMatch(node -> node.getTask(task.id()) == null));
+        // The result is cached on the other nodes too
+        String lateResult = nodes.get(1).subscribe(task.id()).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        assertEquals(result, lateResult);
+    }
+
+    @Test
+    void cancelIsForwardedToTheOwner() {
+        AppWideTasks owner = nodes.get(0);
+        AppWideTasks other = nodes.get(2);
+        Task job = owner.startJob("Job cancelled elsewhere", 60, progress -> {
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                throw new CancellationException("Interrupted");
+            }
+            return "Not cancelled";
+        });
+        await("job is visible on the other nodes", () -> other.getTask(job.id()) != null
+                && nodes.get(1).getTask(job.id()) != null);
+        CompletableFuture<String> remoteSubscription = nodes.get(1).subscribe(job.id());
+
+        assertTrue(other.cancelTask(job.id()));
+        await("owner cancels the job", () -> job.status() == Task.Status.CANCELLED);
+        await("remote subscriber sees the cancellation", remoteSubscription::isCancelled);
+        await("cancelled job is removed on all nodes",
+                () -> nodes.stream().allMatch(node -> node.getTask(job.id()) == null));
+    }
+
+    @Test
+    void idsAreUniqueAcrossTheCluster() {
+        Set<Long> ids = new HashSet<>();
+        for (AppWideTasks node : nodes) {
+            for (int i = 0; i < 100; i++) {
+                ids.add(node.startTask("Id check", 1).id());
+            }
+        }
+        assertEquals(100 * nodes.size(), ids.size());
+    }
+
+    @Test
+    void tasksOfDisconnectedNodeAreDropped() {
+        List<ConfigurableApplicationContext> pair = startNodes(2);
+        try {
+            AppWideTasks staying = pair.get(0).getBean(AppWideTasks.class);
+            Task task = pair.get(1).getBean(AppWideTasks.class).startTask("Task of a leaving node", 60);
+            await("task is visible on the other node", () -> staying.getTask(task.id()) != null);
+            CompletableFuture<String> remoteSubscription = staying.subscribe(task.id());
+
+            pair.get(1).close();
+            await("task of the closed node is dropped", () -> staying.getTask(task.id()) == null
+                    && staying.getActiveTasks().stream().noneMatch(t -> t.id() == task.id()));
+            await("remote subscriber sees the cancellation", remoteSubscription::isCancelled);
+        } finally {
+            pair.forEach(ConfigurableApplicationContext::close);
+        }
+    }
+
+    private static void await(String condition, BooleanSupplier check) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!check.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + condition);
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted waiting until " + condition);
+            }
+        }
+    }
+
+    /**
+     * The task services of a node, without the UI and the rest of the auto configuration.
+     */
+    @Configuration
+    @Import({AppWideTasks.class, TaskExecutors.class, TaskAdmission.class, TaskJournal.class,
+            TaskResultCache.class, TaskRegistryConfiguration.class, TaskClock.SystemClock.class,
+            DurationEstimator.class})
+    static class Node {
+
+        @Bean
+        MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Tests the rules a node of the cluster enforces on the connections from the other nodes: the introduction, the
+ * ownership of the tasks and the limits of the frames and strings. The other node is played by the test over a
+ * plain socket, speaking the protocol of {@link ClusteredTaskRegistry}.
+ */
+@Timeout(30)
+class ClusteredTaskRegistryTest {
+
+    private static final byte HELLO = 1;
+    private static final byte STARTED = 2;
+    private static final byte COMPLETED = 4;
+    private static final byte CANCEL = 6;
+
+    private static final int MAX_STRING_CHARS = 1 << 20;
+    private static final int MAX_STRING_BYTES = 3 * MAX_STRING_CHARS;
+    private static final int MAX_FRAME_BYTES = MAX_STRING_BYTES + 64;
+
+    private static final long TIMEOUT_MILLIS = 10_000;
+
+    private final RecordingOwner owner = new RecordingOwner();
+    private ServerSocket otherNode;
+    private ClusteredTaskRegistry registry;
+    private int port;
+
+    @BeforeEach
+    void startNode() throws IOException {
+        // The test plays node 1, listening for the connection of node 0 too
+        otherNode = new ServerSocket(0);
+        try (ServerSocket free = new ServerSocket(0)) {
+            port = free.getLocalPort();
+        }
+        registry = new ClusteredTaskRegistry(List.of(new InetSocketAddress("127.0.0.1", port),
+                new InetSocketAddress("127.0.0.1", otherNode.getLocalPort())), 0, TaskClock.system());
+        registry.start(owner);
+    }
+
+    @AfterEach
+    void stopNode() throws IOException {
+        registry.close();
+        otherNode.close();
+    }
+
+    @Test
+    void idsArePartitionedByNode() {
+        assertEquals(0, registry.newId());
+        assertEquals(2, registry.newId());
+        assertTrue(registry.isOwned(4));
+        assertFalse(registry.isOwned(5));
+
+        registry.reserveIds(7);
+        assertEquals(8, registry.newId());
+    }
+
+    @Test
+    void acceptsTasksOfTheIntroducedNode() throws IOException {
+        try (Connection connection = connect()) {
+            connection.hello(1);
+            connection.started(3, "Task of node 1");
+            await("the task of node 1 is added", () -> !owner.events.isEmpty());
+            assertEquals(TaskEvent.Type.ADDED, owner.events.get(0).type());
+            assertEquals("Task of node 1", registry.getRemoteTask(3).name());
+
+            connection.send(COMPLETED, 3, string("Result"));
+            await("the task of node 1 is completed", () -> registry.getRemoteTask(3) == null);
+            assertEquals(List.of(3L), owner.completed);
+        }
+    }
+
+    @Test
+    void dropsMessagesForTasksNotOwnedBySender() throws IOException {
+        try (Connection connection = connect()) {
+            connection.hello(1);
+            // Node 1 may only publish the ids 1, 3, 5... and only ask this node to cancel the ids 0, 2, 4...
+            connection.started(2, "Task of node 0");
+            connection.send(COMPLETED, 2, string("Forged result"));
+            connection.send(CANCEL, 3, new byte[0]);
+            connection.send(CANCEL, 4, new byte[0]);
+            connection.started(5, "Processed after the others");
+            await("the last message is applied", () -> registry.getRemoteTask(5) != null);
+
+            assertNull(registry.getRemoteTask(2));
+            assertTrue(owner.completed.isEmpty());
+            assertEquals(List.of(4L), owner.cancelled);
+        }
+    }
+
+    @Test
+    void dropsMessagesBeforeIntroduction() throws IOException {
+        try (Connection connection = connect()) {
+            connection.send(CANCEL, 0, new byte[0]);
+            connection.started(1, "Not introduced yet");
+            connection.hello(1);
+            connection.started(3, "Introduced");
+            await("the message after the introduction is applied", () -> registry.getRemoteTask(3) != null);
+
+            assertNull(registry.getRemoteTask(1));
+            assertTrue(owner.cancelled.isEmpty());
+        }
+    }
+
+    @Test
+    void closesConnectionOnInvalidIntroduction() throws IOException {
+        for (long node : new long[]{0, 2, -1}) {
+            try (Connection connection = connect()) {
+                connection.hello(node);
+                assertTrue(connection.isClosedByNode(), "Introduction as node " + node + " was accepted");
+            }
+        }
+        try (Connection connection = connect()) {
+            connection.hello(1);
+            connection.hello(1);
+            assertTrue(connection.isClosedByNode(), "A second introduction was accepted");
+        }
+    }
+
+    @Test
+    void closesConnectionOnInvalidFrameLength() throws IOException {
+        for (int length : new int[]{MAX_FRAME_BYTES + 1, Integer.MAX_VALUE, 8, 0, -1}) {
+            try (Connection connection = connect()) {
+                connection.hello(1);
+                connection.out.writeInt(length);
+                connection.out.flush();
+                assertTrue(connection.isClosedByNode(), "A frame of " + length + " bytes was accepted");
+            }
+        }
+    }
+
+    @Test
+    void closesConnectionOnTooLongStringAndDropsTheTasksOfTheNode() throws IOException {
+        try (Connection connection = connect()) {
+            connection.hello(1);
+            connection.started(1, "Dropped with the connection");
+            await("the task of node 1 is mirrored", () -> registry.getRemoteTask(1) != null);
+            Task mirror = registry.getRemoteTask(1);
+
+            // Within the frame limit, the length of the string is checked before reading it
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            new DataOutputStream(body).writeInt(MAX_STRING_BYTES + 1);
+            connection.send(STARTED, 3, body.toByteArray());
+
+            assertTrue(connection.isClosedByNode());
+            await("the tasks of the closed connection are dropped",
+                    () -> owner.events.get(owner.events.size() - 1).type() == TaskEvent.Type.REMOVED);
+            assertNull(registry.getRemoteTask(1));
+            assertEquals(Task.Status.CANCELLED, mirror.status());
+        }
+    }
+
+    @Test
+    void cutsTooLongStringsWhenSending() throws IOException {
+        try (Socket socket = otherNode.accept();
+             DataInputStream in = new DataInputStream(socket.getInputStream())) {
+            byte[] hello = readFrame(in);
+            assertEquals(HELLO, hello[0]);
+
+            registry.completed(0, "x".repeat(MAX_STRING_CHARS + 10));
+            DataInputStream completed = new DataInputStream(new ByteArrayInputStream(readFrame(in)));
+            assertEquals(COMPLETED, completed.readByte());
+            assertEquals(0, completed.readLong());
+            assertEquals(MAX_STRING_CHARS, completed.readInt());
+        }
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        assertTrue(length <= MAX_FRAME_BYTES, "Sent a frame of " + length + " bytes");
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return frame;
+    }
+
+    private static byte[] string(String string) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte[] encoded = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(encoded.length);
+        out.write(encoded);
+        return bytes.toByteArray();
+    }
+
+    private Connection connect() throws IOException {
+        return new Connection(new Socket("127.0.0.1", port));
+    }
+
+    private static void await(String condition, BooleanSupplier check) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!check.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out waiting until " + condition);
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail("Interrupted waiting until " + condition);
+            }
+        }
+    }
+
+    /**
+     * An incoming connection of node 1, played by the test.
+     */
+    private static class Connection implements AutoCloseable {
+
+        private final Socket socket;
+        private final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new DataOutputStream(socket.getOutputStream());
+            socket.setSoTimeout((int) TIMEOUT_MILLIS);
+        }
+
+        void hello(long node) throws IOException {
+            send(HELLO, node, new byte[0]);
+        }
+
+        void started(long id, String name) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            DataOutputStream bodyOut = new DataOutputStream(body);
+            bodyOut.write(string(name));
+            bodyOut.writeLong(System.currentTimeMillis());
+            bodyOut.writeInt(60);
+            send(STARTED, id, body.toByteArray());
+        }
+
+        void send(byte type, long id, byte[] body) throws IOException {
+            out.writeInt(1 + 8 + body.length);
+            out.writeByte(type);
+            out.writeLong(id);
+            out.write(body);
+            out.flush();
+        }
+
+        /**
+         * @return true if the node closed the connection, nothing is ever sent over it
+         */
+        boolean isClosedByNode() throws IOException {
+            try {
+                return socket.getInputStream().read() == -1;
+            } catch (SocketException e) {
+                // Reset, the node closed the connection with unread data
+                return true;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    private static class RecordingOwner implements TaskRegistry.Owner {
+
+        private final List<Long> cancelled = new CopyOnWriteArrayList<>();
+        private final List<Long> completed = new CopyOnWriteArrayList<>();
+        private final List<TaskEvent> events = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Collection<Task> ownedTasks() {
+            return List.of();
+        }
+
+        @Override
+        public void cancel(long id) {
+            cancelled.add(id);
+        }
+
+        @Override
+        public void remoteCompleted(long id, String result) {
+            completed.add(id);
+        }
+
+        @Override
+        public void remoteChanged(TaskEvent event) {
+            events.add(event);
+        }
+    }
+}
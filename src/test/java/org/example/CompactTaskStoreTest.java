@@ -0,0 +1,223 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the compact store with a model of a HashMap and a PriorityQueue under random inserts, removals and
+ * expiries, covering the open addressing id table (its backward shift deletion and rehashing), the deadline heap and
+ * the sharing of the names.
+ */
+class CompactTaskStoreTest {
+
+    private static final String[] NAMES = {"Report", "Export", "Import", "Backup", "Cleanup", "Index", "Mail"};
+
+    /**
+     * The model of a stored task.
+     */
+    private record Stored(long id, String name, long startEpochMillis, int duration, long deadline) {
+    }
+
+    @Test
+    void matchesModelUnderRandomOperations() {
+        // Dense ids collide a lot in a small table, sparse ids test the hashing of large ids
+        for (long idStride : new long[]{1, 7, 1L << 32}) {
+            for (long seed = 0; seed < 5; seed++) {
+                runRandomOperations(new Random(seed * 31 + idStride), idStride);
+            }
+        }
+    }
+
+    private void runRandomOperations(Random random, long idStride) {
+        CompactTaskStore store = new CompactTaskStore();
+        Map<Long, Stored> model = new HashMap<>();
+        PriorityQueue<Stored> byDeadline = new PriorityQueue<>(Comparator.comparingLong(Stored::deadline));
+        int idRange = 2000;
+        long now = 0;
+
+        for (int operation = 0; operation < 50_000; operation++) {
+            long id = random.nextInt(idRange) * idStride;
+            int kind = random.nextInt(10);
+            if (kind < 5) {
+                // Names equal to but not the same as the stored ones, they must be shared anyway
+                String name = new String(NAMES[random.nextInt(NAMES.length)]);
+                Stored stored = new Stored(id, name, random.nextLong(), random.nextInt(3600),
+                        now + random.nextInt(1_000_000));
+                if (model.containsKey(id)) {
+                    assertThrows(IllegalArgumentException.class, () -> add(store, stored));
+                } else {
+                    add(store, stored);
+                    model.put(id, stored);
+                    byDeadline.add(stored);
+                }
+            } else if (kind < 8) {
+                CompactTaskStore.Entry removed = store.remove(id);
+                Stored expected = model.remove(id);
+                if (expected == null) {
+                    assertNull(removed);
+                } else {
+                    assertMatches(expected, removed);
+                    byDeadline.remove(expected);
+                }
+            } else if (kind < 9) {
+                now += random.nextInt(100_000);
+                expire(store, model, byDeadline, now);
+            } else {
+                assertEquals(model.containsKey(id), store.contains(id));
+            }
+            assertEquals(model.size(), store.size());
+            if (operation % 5000 == 0) {
+                assertSameTasks(store, model, idRange, idStride);
+            }
+        }
+        assertSameTasks(store, model, idRange, idStride);
+        // Expires everything in the order of the deadlines
+        expire(store, model, byDeadline, Long.MAX_VALUE);
+        assertEquals(0, store.size());
+        assertNull(store.peekDue(Long.MAX_VALUE));
+    }
+
+    private static void add(CompactTaskStore store, Stored stored) {
+        store.add(stored.id(), stored.name(), stored.startEpochMillis(), stored.duration(), stored.deadline(), null);
+    }
+
+    /**
+     * Removes the due tasks like the expiry thread, checking they are due in the order of the model.
+     */
+    private static void expire(CompactTaskStore store, Map<Long, Stored> model, PriorityQueue<Stored> byDeadline,
+                               long now) {
+        for (CompactTaskStore.Entry due; (due = store.peekDue(now)) != null; ) {
+            Stored next = byDeadline.poll();
+            // Tasks with equal deadlines may be due in any order
+            assertEquals(next.deadline(), due.deadline());
+            Stored expected = model.remove(due.id());
+            assertEquals(next.deadline(), expected.deadline());
+            if (expected != next) {
+                byDeadline.remove(expected);
+                byDeadline.add(next);
+            }
+            assertMatches(expected, store.remove(due.id()));
+        }
+        Stored next = byDeadline.peek();
+        assertTrue(next == null || next.deadline() > now, "A due task was not returned");
+    }
+
+    private static void assertSameTasks(CompactTaskStore store, Map<Long, Stored> model, int idRange,
+                                        long idStride) {
+        Set<Long> iterated = new HashSet<>();
+        for (CompactTaskStore.Entry entry : store) {
+            assertTrue(iterated.add(entry.id()), "Task " + entry.id() + " was iterated twice");
+            assertMatches(model.get(entry.id()), entry);
+        }
+        assertEquals(model.keySet(), iterated);
+        for (long i = 0; i < idRange; i++) {
+            assertEquals(model.containsKey(i * idStride), store.contains(i * idStride));
+        }
+    }
+
+    private static void assertMatches(Stored expected, CompactTaskStore.Entry entry) {
+        assertEquals(expected.id(), entry.id());
+        assertEquals(expected.name(), entry.name());
+        assertEquals(expected.startEpochMillis(), entry.startEpochMillis());
+        assertEquals(expected.duration(), entry.duration());
+        assertEquals(expected.deadline(), entry.deadline());
+    }
+
+    @Test
+    void namesAreSharedUntilTheLastTaskWithTheNameIsRemoved() {
+        CompactTaskStore store = new CompactTaskStore();
+        String first = new String("Report");
+        store.add(1, first, 0, 10, 100, null);
+        store.add(2, new String("Report"), 0, 10, 200, null);
+        assertSame(first, name(store, 2));
+
+        store.remove(1);
+        // Still referenced by task 2
+        store.add(3, new String("Report"), 0, 10, 300, null);
+        assertSame(first, name(store, 3));
+
+        store.remove(2);
+        store.remove(3);
+        String second = new String("Report");
+        store.add(4, second, 0, 10, 400, null);
+        assertNotSame(first, name(store, 4));
+        assertSame(second, name(store, 4));
+    }
+
+    @Test
+    void releasedNameIdsAreReused() {
+        CompactTaskStore store = new CompactTaskStore();
+        List<Long> ids = new ArrayList<>();
+        // More distinct names than the initial capacity, all released and then reused
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 100; i++) {
+                long id = round * 100L + i;
+                store.add(id, "Name " + round + " " + i, 0, 10, id, null);
+                ids.add(id);
+            }
+            for (long id : ids) {
+                assertEquals("Name " + round + " " + (id % 100), name(store, id));
+                store.remove(id);
+            }
+            ids.clear();
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void materializedTaskIsKeptUntilRemoved() {
+        CompactTaskStore store = new CompactTaskStore();
+        store.add(1, "Task", 0, 10, 100, null);
+        Task task = store.materialize(1, entry -> new Task(entry.id(), entry.name(), LocalDateTime.now(), 10));
+
+        assertSame(task, store.materialize(1, entry -> {
+            throw new AssertionError("Materialized twice");
+        }));
+        assertSame(task, store.remove(1).task());
+        assertNull(store.materialize(1, entry -> {
+            throw new AssertionError("Removed task materialized");
+        }));
+    }
+
+    @Test
+    void awaitDueWakesUpForEarlierTask() throws InterruptedException {
+        TaskClock clock = TaskClock.system();
+        CompactTaskStore store = new CompactTaskStore();
+        store.add(1, "Later", 0, 3600, clock.nanoTime() + TimeUnit.HOURS.toNanos(1), null);
+        Thread waiter = Thread.ofPlatform().start(() -> {
+            try {
+                store.awaitDue(clock);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        Thread.sleep(50);
+        store.add(2, "Sooner", 0, 0, clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(10), null);
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+        assertTrue(!waiter.isAlive(), "Not woken up by the task due sooner");
+        assertEquals(2, store.peekDue(clock.nanoTime()).id());
+    }
+
+    private static String name(CompactTaskStore store, long id) {
+        return store.stream().filter(entry -> entry.id() == id).findFirst().orElseThrow().name();
+    }
+}
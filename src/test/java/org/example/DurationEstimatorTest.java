@@ -0,0 +1,195 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the quantiles of the streaming histogram against known distributions, within the width of its buckets, and
+ * the decay of the older durations.
+ */
+class DurationEstimatorTest {
+
+    /**
+     * The buckets are 2^(1/8), a bit over 9%, wide. The interpolation within a bucket is exact for durations spread
+     * evenly on the logarithmic scale, and off by less than the width of the bucket otherwise.
+     */
+    private static final double BUCKET_ERROR = 0.1;
+
+    /**
+     * Long enough for the durations of a test to weigh about the same.
+     */
+    private static final int NO_DECAY = 1_000_000_000;
+
+    private static DurationEstimator estimator(int halfLife) {
+        return estimator(halfLife, TaskClock.system());
+    }
+
+    private static DurationEstimator estimator(int halfLife, TaskClock clock) {
+        return new DurationEstimator(halfLife, 1000, clock, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void estimatesNothingUntilRecordedEnough() {
+        DurationEstimator estimator = estimator(50);
+        assertEquals(Optional.empty(), estimator.getEstimate("job"));
+        assertEquals(OptionalLong.empty(), estimator.getQuantile("job", 0.5));
+
+        estimator.record("job", 100);
+        estimator.record("job", 100);
+        assertEquals(Optional.empty(), estimator.getEstimate("job"));
+        assertEquals(OptionalLong.empty(), estimator.getQuantile("job", 0.5));
+
+        estimator.record("job", 100);
+        assertTrue(estimator.getEstimate("job").isPresent());
+        assertTrue(estimator.getQuantile("job", 0.5).isPresent());
+        // The operations are estimated separately
+        assertEquals(Optional.empty(), estimator.getEstimate("other job"));
+    }
+
+    @Test
+    void constantDurationIsEstimatedWithinBucket() {
+        for (long millis : new long[]{1, 7, 100, 1000, 12_345, TimeUnit.HOURS.toMillis(2)}) {
+            DurationEstimator estimator = estimator(50);
+            for (int i = 0; i < 10; i++) {
+                estimator.record("job", millis);
+            }
+            for (double quantile : new double[]{0.01, 0.5, 0.9, 0.99, 1}) {
+                assertWithinBucket(millis, estimator.getQuantile("job", quantile).getAsLong());
+            }
+        }
+    }
+
+    @Test
+    void durationsUnderMillisecondAreEstimatedAsZero() {
+        DurationEstimator estimator = estimator(50);
+        for (int i = 0; i < 5; i++) {
+            estimator.record("job", 0);
+        }
+        assertEquals(new DurationEstimator.Estimate(0, 0), estimator.getEstimate("job").orElseThrow());
+    }
+
+    @Test
+    void uniformDistributionQuantiles() {
+        DurationEstimator estimator = estimator(NO_DECAY);
+        List<Long> durations = new ArrayList<>();
+        for (long millis = 1; millis <= 10_000; millis++) {
+            durations.add(millis);
+        }
+        Collections.shuffle(durations, new Random(1));
+        durations.forEach(millis -> estimator.record("job", millis));
+
+        for (double quantile : new double[]{0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99}) {
+            assertWithinBucket(Math.round(quantile * 10_000), estimator.getQuantile("job", quantile).getAsLong());
+        }
+        DurationEstimator.Estimate estimate = estimator.getEstimate("job").orElseThrow();
+        assertWithinBucket(5000, estimate.p50Millis());
+        assertWithinBucket(9000, estimate.p90Millis());
+    }
+
+    @Test
+    void logUniformDistributionQuantiles() {
+        // Spread evenly over the logarithmic scale, from 10 ms to 100 s, like the bucket boundaries
+        DurationEstimator estimator = estimator(NO_DECAY);
+        Random random = new Random(2);
+        for (int i = 0; i < 100_000; i++) {
+            estimator.record("job", Math.round(Math.pow(10, 1 + 4 * random.nextDouble())));
+        }
+
+        for (double quantile : new double[]{0.1, 0.25, 0.5, 0.75, 0.9}) {
+            assertWithinBucket(Math.round(Math.pow(10, 1 + 4 * quantile)),
+                    estimator.getQuantile("job", quantile).getAsLong());
+        }
+    }
+
+    @Test
+    void bimodalDistributionQuantiles() {
+        DurationEstimator estimator = estimator(NO_DECAY);
+        // A fast path, 70% at 50 ms, and a slow path, 30% at 5 s
+        for (int i = 0; i < 1000; i++) {
+            estimator.record("job", i % 10 < 7 ? 50 : 5000);
+        }
+
+        assertWithinBucket(50, estimator.getQuantile("job", 0.5).getAsLong());
+        assertWithinBucket(50, estimator.getQuantile("job", 0.69).getAsLong());
+        assertWithinBucket(5000, estimator.getQuantile("job", 0.71).getAsLong());
+        assertWithinBucket(5000, estimator.getEstimate("job").orElseThrow().p90Millis());
+    }
+
+    @Test
+    void olderDurationsWeighHalfAfterHalfLife() {
+        int halfLife = 50;
+        DurationEstimator estimator = estimator(halfLife);
+        for (int i = 0; i < 1000; i++) {
+            estimator.record("job", 100);
+        }
+        // The older durations weigh as much as the half-life newer ones
+        for (int i = 0; i < halfLife; i++) {
+            estimator.record("job", 1000);
+        }
+        assertWithinBucket(100, estimator.getQuantile("job", 0.45).getAsLong());
+        assertWithinBucket(1000, estimator.getQuantile("job", 0.55).getAsLong());
+
+        // After three half-lives they weigh an eighth
+        for (int i = 0; i < 2 * halfLife; i++) {
+            estimator.record("job", 1000);
+        }
+        assertWithinBucket(100, estimator.getQuantile("job", 0.12).getAsLong());
+        assertWithinBucket(1000, estimator.getQuantile("job", 0.13).getAsLong());
+        assertEstimate(1000, estimator.getEstimate("job").orElseThrow());
+    }
+
+    @Test
+    void weightsAreRescaledBeforeOverflowing() {
+        // Each duration weighs twice the previous one, without rescaling the weights would overflow after 1024
+        DurationEstimator estimator = estimator(1);
+        for (int i = 0; i < 10_000; i++) {
+            estimator.record("job", 100);
+        }
+        for (int i = 0; i < 10; i++) {
+            estimator.record("job", 1000);
+        }
+
+        assertEstimate(1000, estimator.getEstimate("job").orElseThrow());
+        // The older durations still count, a bit
+        assertWithinBucket(100, estimator.getQuantile("job", 0.0001).getAsLong());
+    }
+
+    @Test
+    void timesOnlyNormallyCompletedFutures() {
+        VirtualTimeHarness.VirtualClock clock = new VirtualTimeHarness.VirtualClock();
+        DurationEstimator estimator = estimator(NO_DECAY, clock);
+        for (int i = 0; i < 3; i++) {
+            CompletableFuture<String> completed = estimator.time("job", new CompletableFuture<>());
+            CompletableFuture<String> failed = estimator.time("job", new CompletableFuture<>());
+            CompletableFuture<String> cancelled = estimator.time("job", new CompletableFuture<>());
+            clock.set(clock.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+            completed.complete("Result");
+            failed.completeExceptionally(new IllegalStateException("Failed"));
+            cancelled.cancel(false);
+        }
+
+        assertEstimate(2000, estimator.getEstimate("job").orElseThrow());
+    }
+
+    private static void assertEstimate(long expected, DurationEstimator.Estimate estimate) {
+        assertWithinBucket(expected, estimate.p50Millis());
+        assertWithinBucket(expected, estimate.p90Millis());
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(Math.abs(actual - expected) <= Math.max(1, BUCKET_ERROR * expected),
+                "Estimated " + actual + " ms instead of " + expected + " ms");
+    }
+}
@@ -0,0 +1,226 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the hedging of slow calls, the hedge budget and the cancellation of the losers. The hedges are started by a
+ * scheduler run by hand and the attempts are completed by the tests, so nothing depends on the timing.
+ */
+class HedgerTest {
+
+    private static final String OPERATION = "operation";
+
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final DurationEstimator estimator = new DurationEstimator(50, 1000, TaskClock.system(),
+            new SimpleMeterRegistry());
+    // The attempts started, completed by the tests
+    private final List<CompletableFuture<String>> attempts = new ArrayList<>();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private Hedger<String> hedger(double budget) {
+        for (int i = 0; i < 10; i++) {
+            estimator.record(OPERATION, 100);
+        }
+        return new Hedger<>(estimator, 0.95, budget, scheduler);
+    }
+
+    private CompletableFuture<String> call() {
+        CompletableFuture<String> attempt = new CompletableFuture<>();
+        attempts.add(attempt);
+        return attempt;
+    }
+
+    @Test
+    void notHedgedUntilTheDurationsAreKnown() {
+        Hedger<String> hedger = new Hedger<>(estimator, 0.95, 1, scheduler);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+
+        assertTrue(scheduler.scheduled.isEmpty());
+        attempts.get(0).complete("result");
+        assertEquals("result", result.join());
+    }
+
+    @Test
+    void fastCallIsNotHedged() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        attempts.get(0).complete("result");
+
+        scheduler.runAll();
+        assertEquals("result", result.join());
+        assertEquals(1, attempts.size());
+        assertEquals(0, hedger.getHedges());
+    }
+
+    @Test
+    void hedgeWinsAndTheOriginalIsCancelled() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        assertEquals(1, scheduler.scheduled.size());
+
+        scheduler.runAll();
+        assertEquals(2, attempts.size());
+        attempts.get(1).complete("hedged");
+
+        assertEquals("hedged", result.join());
+        assertTrue(attempts.get(0).isCancelled());
+        assertEquals(1, hedger.getHedges());
+        assertEquals(1, hedger.getHedgesWon());
+    }
+
+    @Test
+    void originalWinsAndTheHedgeIsCancelled() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        scheduler.runAll();
+        attempts.get(0).complete("original");
+
+        assertEquals("original", result.join());
+        assertTrue(attempts.get(1).isCancelled());
+        assertEquals(0, hedger.getHedgesWon());
+    }
+
+    @Test
+    void cancellingTheResultCancelsAllAttempts() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        scheduler.runAll();
+
+        result.cancel(true);
+        assertTrue(attempts.get(0).isCancelled());
+        assertTrue(attempts.get(1).isCancelled());
+    }
+
+    @Test
+    void failureWaitsForTheRunningHedge() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        scheduler.runAll();
+
+        attempts.get(0).completeExceptionally(new IllegalStateException("Original failed"));
+        assertFalse(result.isDone());
+        attempts.get(1).complete("hedged");
+        assertEquals("hedged", result.join());
+    }
+
+    @Test
+    void failsWhenAllAttemptsFail() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        scheduler.runAll();
+
+        attempts.get(1).completeExceptionally(new IllegalStateException("Hedge failed"));
+        assertFalse(result.isDone());
+        attempts.get(0).completeExceptionally(new IllegalStateException("Original failed"));
+        assertTrue(result.isCompletedExceptionally());
+    }
+
+    @Test
+    void failureBeforeTheHedgeFailsRightAway() {
+        Hedger<String> hedger = hedger(1);
+        CompletableFuture<String> result = hedger.execute(OPERATION, this::call);
+        attempts.get(0).completeExceptionally(new IllegalStateException("Failed"));
+
+        assertTrue(result.isCompletedExceptionally());
+        assertTrue(scheduler.scheduled.get(0).isCancelled());
+        scheduler.runAll();
+        assertEquals(1, attempts.size());
+    }
+
+    @Test
+    void budgetIsEarnedInThousandthsOfAHedge() {
+        // 0.3 hedges per call, the fourth call has earned a whole hedge
+        Hedger<String> hedger = hedger(0.3);
+        for (int i = 0; i < 4; i++) {
+            hedger.execute(OPERATION, this::call);
+            scheduler.runAll();
+        }
+
+        assertEquals(1, hedger.getHedges());
+        assertEquals(3, hedger.getHedgesDenied());
+        assertEquals(5, attempts.size());
+    }
+
+    @Test
+    void atMostMaxSavedHedgesAreSavedUp() {
+        Hedger<String> hedger = hedger(1);
+        for (int i = 0; i < 2 * Hedger.MAX_SAVED_HEDGES; i++) {
+            hedger.execute(OPERATION, () -> CompletableFuture.completedFuture("fast"));
+        }
+        // A burst of slow calls, each earning a hedge too, but the savings are already at the cap
+        int slowCalls = Hedger.MAX_SAVED_HEDGES + 1;
+        for (int i = 0; i < slowCalls; i++) {
+            hedger.execute(OPERATION, this::call);
+        }
+        scheduler.runAll();
+
+        assertEquals(Hedger.MAX_SAVED_HEDGES, hedger.getHedges());
+        assertEquals(1, hedger.getHedgesDenied());
+        assertEquals(slowCalls + Hedger.MAX_SAVED_HEDGES, attempts.size());
+    }
+
+    /**
+     * Keeps the scheduled tasks until run by the test, regardless of their delay.
+     */
+    private static class ManualScheduler extends ScheduledThreadPoolExecutor {
+
+        private final List<ManualFuture> scheduled = new ArrayList<>();
+
+        ManualScheduler() {
+            super(0);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+            ManualFuture future = new ManualFuture(command, unit.toMillis(delay));
+            scheduled.add(future);
+            return future;
+        }
+
+        /**
+         * Runs the tasks scheduled so far, except the cancelled ones.
+         */
+        void runAll() {
+            List.copyOf(scheduled).forEach(ManualFuture::run);
+        }
+    }
+
+    private static class ManualFuture extends FutureTask<Void> implements ScheduledFuture<Void> {
+
+        private final long delayMillis;
+
+        ManualFuture(Runnable command, long delayMillis) {
+            super(command, null);
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the latency of SlowService.generateStringAsync without and with hedging, when some calls stall (take ten
+ * times longer). Each worker calls with its own duration, so the calls are not shared by the SingleFlight, and waits
+ * for each result before the next call.
+ * <p>
+ * Reports the latency percentiles, and the hedges started per call. Run with the number of workers (default 8), the
+ * calls per worker (default 300) and the stall probability (default 0.05).
+ */
+public class HedgingHarness {
+
+    private static final int BASE_MILLIS = 20;
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int callsPerWorker = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        double stallProbability = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+
+        for (boolean hedging : new boolean[]{false, true}) {
+            SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+            TaskExecutors taskExecutors = new TaskExecutors(TaskExecutors.Mode.VIRTUAL, 1, meterRegistry);
+            DurationEstimator estimator = new DurationEstimator(50, 1000, TaskClock.system(), meterRegistry);
+            SlowService slowService = new SlowService(taskExecutors, estimator, hedging, 0.95, 0.1, stallProbability,
+                    meterRegistry);
+
+            long[] latencies = new long[workers * callsPerWorker];
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            Future<?>[] runs = new Future<?>[workers];
+            for (int w = 0; w < workers; w++) {
+                int worker = w;
+                runs[w] = pool.submit(() -> {
+                    for (int i = 0; i < callsPerWorker; i++) {
+                        long start = System.nanoTime();
+                        slowService.generateStringAsync(BASE_MILLIS + worker).join();
+                        latencies[worker * callsPerWorker + i] = System.nanoTime() - start;
+                    }
+                });
+            }
+            for (Future<?> run : runs) {
+                run.get();
+            }
+            pool.shutdown();
+
+            Arrays.sort(latencies);
+            double hedges = meterRegistry.get("slow.service.hedges").functionCounter().count();
+            double won = meterRegistry.get("slow.service.hedges.won").functionCounter().count();
+            System.out.printf("Hedging %-3s: p50 %d ms, p95 %d ms, p99 %d ms, max %d ms, %.1f%% hedged (%.0f won)%n",
+                    hedging ? "on" : "off", millis(latencies, 0.5), millis(latencies, 0.95), millis(latencies, 0.99),
+                    TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length - 1]),
+                    100 * hedges / latencies.length, won);
+
+            slowService.shutdown();
+            taskExecutors.shutdown();
+        }
+        System.exit(0);
+    }
+
+    private static long millis(long[] sortedNanos, double quantile) {
+        return TimeUnit.NANOSECONDS.toMillis(sortedNanos[(int) Math.min(sortedNanos.length - 1,
+                quantile * sortedNanos.length)]);
+    }
+}
@@ -0,0 +1,717 @@
+package org.example;
+
+import elemental.json.Json;
+import elemental.json.JsonArray;
+import elemental.json.JsonObject;
+import elemental.json.JsonType;
+import elemental.json.JsonValue;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A load test for one box, working offline: boots the app with its embedded web server on a random port and drives
+ * thousands of sessions against it over HTTP, in steps of increasing session counts. The sessions speak the protocol
+ * of the Vaadin client: UIDL requests for the server round trips and a websocket for the pushes. Each session loops
+ * like a user of ReallyLongActions: opens the view in a new UI (init request, push connection and navigation), fetches
+ * the first page of the task grid, which subscribes to the running tasks on it, starts a task, waits for the next
+ * result pushed to it, closes the view like a browser leaving the page (which releases the subscriptions) and thinks
+ * for a while.
+ * <p>
+ * The push latency is the time from the completion of a task to the arrival of the push telling a session about it,
+ * taken from the completion time in the result, as both ends run in this JVM. Every result pushed to a session
+ * counts, the ones of its own tasks and of the tasks of others it is subscribed to.
+ * <p>
+ * Reports per session count the throughput, the push latency percentiles, the peak heap and the platform threads.
+ * The clients are counted in too, but they are light: they share one HttpClient and run in virtual threads, the
+ * state of a client is a few maps of node ids. Run with the session counts (default 100,1000,5000) and the seconds per
+ * step (default 60), further arguments are passed to the app, e.g. --tasks.admission.max-active=10000.
+ */
+public class LoadTestHarness {
+
+    private static final String ROUTE = "really-long-actions";
+    private static final String START_BUTTON = "Start new task";
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_THINK_MILLIS = 2000;
+    private static final long TIMEOUT_MILLIS = 60_000;
+    private static final long SAMPLE_MILLIS = 250;
+
+    /**
+     * The notification of a completed task, the result ends with the time the task completed.
+     */
+    private static final Pattern RESULT = Pattern.compile(
+            "Task completed: Task [^\"]*? completed at (\\d{2}:\\d{2}(?::\\d{2}(?:\\.\\d{1,9})?)?)");
+    /**
+     * The length prefix of the push messages, see the TrackMessageSizeInterceptor of Atmosphere.
+     */
+    private static final Pattern MESSAGE_LENGTH = Pattern.compile("\\d{1,9}");
+    private static final String UIDL_PREFIX = "for(;;);";
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> sessionCounts = List.of(100, 1000, 5000);
+        Duration stepDuration = Duration.ofSeconds(60);
+        if (args.length > 0) {
+            sessionCounts = List.of(args[0].split(",")).stream().map(Integer::valueOf).toList();
+        }
+        if (args.length > 1) {
+            stepDuration = Duration.ofSeconds(Long.parseLong(args[1]));
+        }
+        List<String> appArgs = new ArrayList<>(List.of("--server.port=0", "--management.server.port=0"));
+        if (args.length > 2) {
+            appArgs.addAll(List.of(args).subList(2, args.length));
+        }
+        System.setProperty("spring.devtools.restart.enabled", "false");
+
+        try (ConfigurableApplicationContext context = SpringApplication.run(Application.class,
+                appArgs.toArray(String[]::new))) {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            HttpClient http = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                    .executor(Executors.newVirtualThreadPerTaskExecutor())
+                    .build();
+            URI base = URI.create("http://127.0.0.1:" + port + "/");
+            System.out.println(StepResult.HEADER);
+            for (int sessions : sessionCounts) {
+                Step step = new Step();
+                System.out.println(runStep(http, base, sessions, stepDuration, step));
+                Throwable error = step.firstError.get();
+                if (error != null) {
+                    System.err.println("First error of the step: " + error);
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs the given number of sessions against the app for the given time. The sessions are started during the
+     * first tenth of the step and finish their cycle at the end of it.
+     */
+    static StepResult runStep(HttpClient http, URI base, int sessions, Duration duration, Step step)
+            throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long baselineHeap = retainedHeap(memory);
+        threads.resetPeakThreadCount();
+
+        AtomicLong peakHeap = new AtomicLong();
+        Thread sampler = Thread.ofPlatform().daemon().name("load-test-sampler").start(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long rampUpMillis = duration.toMillis() / 10;
+        List<Thread> sessionThreads = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            Session session = new Session("load-test-" + sessions + "-" + i, http, base, step);
+            sessionThreads.add(Thread.ofVirtual().start(() -> session.run(rampUpMillis, end)));
+        }
+        for (Thread thread : sessionThreads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        sampler.interrupt();
+        sampler.join();
+
+        return new StepResult(sessions, step.cycles.sum() / seconds, step.tasksStarted.sum() / seconds,
+                step.pushes.sum() / seconds, step.latency.percentile(0.5), step.latency.percentile(0.9),
+                step.latency.percentile(0.99), step.latency.max(), step.rejected.sum(), step.errors.sum(),
+                peakHeap.get() / (1024 * 1024), Math.max(0, peakHeap.get() - baselineHeap) / 1024 / sessions,
+                threads.getPeakThreadCount());
+    }
+
+    private static long retainedHeap(MemoryMXBean memory) throws InterruptedException {
+        long used = Long.MAX_VALUE;
+        // A few rounds, a single System.gc() is only a hint
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+            used = Math.min(used, memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    /**
+     * The counters of a step, shared by its sessions.
+     */
+    static class Step {
+
+        final LongAdder cycles = new LongAdder();
+        final LongAdder tasksStarted = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final LongAdder pushes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LatencyRecorder latency = new LatencyRecorder();
+        /**
+         * Printed after the step, e.g. to tell why all sessions fail.
+         */
+        final AtomicReference<Throwable> firstError = new AtomicReference<>();
+
+        void failed(Throwable error) {
+            errors.increment();
+            firstError.compareAndSet(null, error);
+        }
+    }
+
+    record StepResult(int sessions, double cyclesPerSecond, double tasksPerSecond, double pushesPerSecond,
+                      long p50Millis, long p90Millis, long p99Millis, long maxMillis, long rejected, long errors,
+                      long peakHeapMegabytes, long heapPerSessionKilobytes, int peakThreads) {
+
+        static final String HEADER = String.format("%8s %9s %8s %9s %7s %7s %7s %7s %8s %6s %9s %10s %7s",
+                "sessions", "cycles/s", "tasks/s", "pushes/s", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "rejected", "errors", "heap MB", "kB/session", "threads");
+
+        @Override
+        public String toString() {
+            return String.format("%8d %9.1f %8.1f %9.1f %7d %7d %7d %7d %8d %6d %9d %10d %7d", sessions,
+                    cyclesPerSecond, tasksPerSecond, pushesPerSecond, p50Millis, p90Millis, p99Millis, maxMillis,
+                    rejected, errors, peakHeapMegabytes, heapPerSessionKilobytes, peakThreads);
+        }
+    }
+
+    /**
+     * Counts the latencies in buckets of a millisecond, up to a minute.
+     */
+    static class LatencyRecorder {
+
+        private static final int BUCKETS = 60_000;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 1);
+        private final LongAdder count = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(0, nanos));
+            counts.incrementAndGet((int) Math.min(BUCKETS, millis));
+            count.increment();
+            max.accumulateAndGet(millis, Math::max);
+        }
+
+        /**
+         * @param quantile e.g. 0.99
+         * @return the latency of the quantile, in milliseconds, or 0 if nothing was recorded
+         */
+        long percentile(double quantile) {
+            long rank = (long) Math.ceil(quantile * count.sum());
+            long seen = 0;
+            for (int millis = 0; millis <= BUCKETS; millis++) {
+                seen += counts.get(millis);
+                if (seen >= rank && seen > 0) {
+                    return millis;
+                }
+            }
+            return 0;
+        }
+
+        long max() {
+            return max.get();
+        }
+    }
+
+    /**
+     * A user with an own HTTP session, opening the view in a new UI each cycle, like in a new browser tab.
+     */
+    private static class Session {
+
+        private final String id;
+        private final HttpClient http;
+        private final URI base;
+        private final Step step;
+        /**
+         * The session cookie, set by the first response.
+         */
+        private volatile String cookie;
+        private int uisOpened;
+
+        Session(String id, HttpClient http, URI base, Step step) {
+            this.id = id;
+            this.http = http;
+            this.base = base;
+            this.step = step;
+        }
+
+        void run(long rampUpMillis, long endNanos) {
+            Random random = ThreadLocalRandom.current();
+            try {
+                Thread.sleep(rampUpMillis > 0 ? random.nextLong(rampUpMillis) : 0);
+                while (System.nanoTime() < endNanos) {
+                    cycle(random);
+                    Thread.sleep(random.nextInt(MAX_THINK_MILLIS));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void cycle(Random random) throws InterruptedException {
+            View view = new View(id + "-" + uisOpened++);
+            try {
+                view.open();
+                if (view.startTask()) {
+                    view.awaitResult();
+                }
+                // Reading the result, the grid keeps updating meanwhile
+                view.stay(random.nextInt(MAX_THINK_MILLIS));
+                step.cycles.increment();
+            } catch (IOException | TimeoutException | RuntimeException e) {
+                step.failed(e);
+            } finally {
+                view.close();
+            }
+        }
+
+        /**
+         * The view in a UI of its own, with its push connection.
+         */
+        private class View implements WebSocket.Listener {
+
+            private final String windowName;
+            private int uiId;
+            private String csrfToken;
+            private String pushId;
+            private WebSocket push;
+            /**
+             * Set when closing, the push connection is aborted then.
+             */
+            private volatile boolean closing;
+
+            // The message counters of the Vaadin client: the last message seen from the server, the next one sent
+            private int syncId;
+            private int clientId;
+            private int promiseId;
+
+            // What the client needs to know of the state tree: the tags, the texts and the parents of the nodes
+            private final Map<Integer, String> tags = new HashMap<>();
+            private final Map<Integer, String> texts = new HashMap<>();
+            private final Map<Integer, Integer> parents = new HashMap<>();
+            private int startButton = -1;
+
+            /**
+             * The calls to send with the next request, e.g. confirming the updates of the grid.
+             */
+            private final List<JsonObject> pendingCalls = new ArrayList<>();
+            private final Semaphore pushedResults = new Semaphore(0);
+            private final StringBuilder pushBuffer = new StringBuilder();
+
+            View(String windowName) {
+                this.windowName = windowName;
+            }
+
+            void open() throws IOException, InterruptedException, TimeoutException {
+                // Creates the UI, like the client after loading the page
+                String init = get("?v-r=init&location=" + ROUTE + "&query=&v-sw=1920&v-sh=1080&v-wn=" + windowName
+                        + "&v-tzid=UTC&v-tzo=0&v-rtzo=0&v-dstd=0&v-dston=false&v-td=false&v-pr=1&v-curdate="
+                        + System.currentTimeMillis());
+                JsonObject appConfig = ((JsonObject) Json.parse(init)).getObject("appConfig");
+                JsonObject uidl = appConfig.getObject("uidl");
+                uiId = (int) appConfig.getNumber("v-uiId");
+                csrfToken = uidl.getString("Vaadin-Security-Key");
+                pushId = uidl.getString("Vaadin-Push-ID");
+                handle(uidl, true);
+                connectPush();
+
+                // Navigates to the view, the response renders it
+                call(1, "connectClient", Json.create(ROUTE), Json.create(""), Json.create(""), Json.createNull(),
+                        Json.create(""));
+                send();
+                int grid = nodeWithTag("vaadin-grid");
+                startButton = buttonWithText(START_BUTTON);
+                // The first page of the grid, the running tasks on it are subscribed to
+                call(grid, "setViewportRange", Json.create(0), Json.create(PAGE_SIZE));
+                send();
+            }
+
+            private void connectPush() throws InterruptedException, IOException, TimeoutException {
+                URI uri = URI.create("ws://" + base.getAuthority() + "/VAADIN/push?v-r=push&v-uiId=" + uiId
+                        + "&v-pushId=" + pushId + "&X-Atmosphere-tracking-id=0"
+                        + "&X-Atmosphere-Framework=3.1.5-javascript&X-Atmosphere-Transport=websocket"
+                        + "&X-Atmosphere-TrackMessageSize=true&X-atmo-protocol=true"
+                        + "&Content-Type=application/json;%20charset=UTF-8");
+                if (cookie == null) {
+                    throw new IOException("No session cookie from the init request of " + windowName);
+                }
+                try {
+                    push = http.newWebSocketBuilder()
+                            .header("Cookie", cookie)
+                            .connectTimeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                            .buildAsync(uri, this)
+                            .get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    throw new IOException("Push connection failed", e.getCause());
+                }
+            }
+
+            /**
+             * @return true if the task was started or queued, false if it was rejected
+             */
+            boolean startTask() throws IOException, InterruptedException {
+                pushedResults.drainPermits();
+                String response = send(event(startButton, "click"));
+                if (response.contains("Task rejected")) {
+                    step.rejected.increment();
+                    return false;
+                }
+                step.tasksStarted.increment();
+                return true;
+            }
+
+            /**
+             * Waits for the next result pushed to the view.
+             */
+            void awaitResult() throws IOException, InterruptedException, TimeoutException {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+                while (!pushedResults.tryAcquire(1, TimeUnit.SECONDS)) {
+                    if (System.nanoTime() > deadline) {
+                        throw new TimeoutException("No result pushed to " + windowName);
+                    }
+                    sendPendingCalls();
+                }
+            }
+
+            /**
+             * Keeps the view open for a while, answering the pushes like the client.
+             */
+            void stay(long millis) throws IOException, InterruptedException {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+                while (System.nanoTime() < deadline) {
+                    Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()) + 1, 1000));
+                    sendPendingCalls();
+                }
+            }
+
+            /**
+             * Leaves the page like a browser: the unload beacon closes the UI, which detaches the view.
+             */
+            void close() {
+                closing = true;
+                try {
+                    if (csrfToken != null) {
+                        JsonObject beacon = message();
+                        beacon.put("UNLOAD", true);
+                        post(beacon);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    step.failed(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    if (push != null) {
+                        push.sendClose(WebSocket.NORMAL_CLOSURE, "").whenComplete((socket, error) -> push.abort());
+                    }
+                }
+            }
+
+            // The state tree
+
+            private synchronized void handle(JsonObject uidl, boolean response) {
+                if (uidl.hasKey("syncId")) {
+                    syncId = Math.max(syncId, (int) uidl.getNumber("syncId"));
+                }
+                // The id of the next message is only told in the responses, not in the pushes between them
+                if (response && uidl.hasKey("clientId")) {
+                    clientId = (int) uidl.getNumber("clientId");
+                }
+                if (uidl.hasKey("meta") && uidl.getObject("meta").hasKey("appError")) {
+                    throw new IllegalStateException("Error in " + windowName + ": "
+                            + uidl.getObject("meta").getObject("appError").toJson());
+                }
+                if (uidl.hasKey("changes")) {
+                    JsonArray changes = uidl.getArray("changes");
+                    for (int i = 0; i < changes.length(); i++) {
+                        applyChange(changes.getObject(i));
+                    }
+                }
+                if (uidl.hasKey("execute")) {
+                    JsonArray execute = uidl.getArray("execute");
+                    for (int i = 0; i < execute.length(); i++) {
+                        confirmGridUpdate(execute.getArray(i));
+                    }
+                }
+            }
+
+            private void applyChange(JsonObject change) {
+                int node = (int) change.getNumber("node");
+                String type = change.getString("type");
+                if ("put".equals(type) && change.hasKey("value")
+                        && change.get("value").getType() == JsonType.STRING) {
+                    String key = change.getString("key");
+                    if ("tag".equals(key)) {
+                        tags.put(node, change.getString("value"));
+                    } else if ("text".equals(key)) {
+                        texts.put(node, change.getString("value"));
+                    }
+                } else if ("splice".equals(type) && change.hasKey("addNodes")) {
+                    JsonArray children = change.getArray("addNodes");
+                    for (int i = 0; i < children.length(); i++) {
+                        parents.put((int) children.getNumber(i), node);
+                    }
+                }
+            }
+
+            /**
+             * The grid keeps the rows it has sent until the client confirms them, like the grid connector does.
+             */
+            private void confirmGridUpdate(JsonArray invocation) {
+                String script = invocation.getString(invocation.length() - 1);
+                if (!script.contains("$connector.confirm(")) {
+                    return;
+                }
+                int node = -1;
+                int updateId = -1;
+                for (int i = 0; i < invocation.length() - 1; i++) {
+                    JsonValue parameter = invocation.get(i);
+                    if (parameter.getType() == JsonType.OBJECT && ((JsonObject) parameter).hasKey("@v-node")) {
+                        node = (int) ((JsonObject) parameter).getNumber("@v-node");
+                    } else if (parameter.getType() == JsonType.NUMBER) {
+                        updateId = (int) parameter.asNumber();
+                    }
+                }
+                if (node >= 0 && updateId >= 0) {
+                    call(node, "confirmUpdate", Json.create(updateId));
+                }
+            }
+
+            private synchronized int nodeWithTag(String tag) {
+                return tags.entrySet().stream()
+                        .filter(entry -> entry.getValue().equals(tag))
+                        .mapToInt(Map.Entry::getKey)
+                        .findFirst()
+                        .orElseThrow(() -> new IllegalStateException("No " + tag + " in " + windowName));
+            }
+
+            private synchronized int buttonWithText(String text) {
+                return texts.entrySet().stream()
+                        .filter(entry -> entry.getValue().equals(text))
+                        .map(entry -> parents.get(entry.getKey()))
+                        .filter(parent -> parent != null && "vaadin-button".equals(tags.get(parent)))
+                        .mapToInt(Integer::intValue)
+                        .findFirst()
+                        .orElseThrow(() -> new IllegalStateException("No button " + text + " in " + windowName));
+            }
+
+            // The messages to the server
+
+            private synchronized void call(int node, String method, JsonValue... arguments) {
+                JsonObject call = Json.createObject();
+                call.put("type", "publishedEventHandler");
+                call.put("node", node);
+                call.put("templateEventMethodName", method);
+                JsonArray args = Json.createArray();
+                for (int i = 0; i < arguments.length; i++) {
+                    args.set(i, arguments[i]);
+                }
+                call.put("templateEventMethodArgs", args);
+                call.put("promise", promiseId++);
+                pendingCalls.add(call);
+            }
+
+            private JsonObject event(int node, String event) {
+                JsonObject rpc = Json.createObject();
+                rpc.put("type", "event");
+                rpc.put("node", node);
+                rpc.put("event", event);
+                JsonObject data = Json.createObject();
+                data.put("event.detail", 1);
+                data.put("event.button", 0);
+                rpc.put("data", data);
+                return rpc;
+            }
+
+            private void sendPendingCalls() throws IOException, InterruptedException {
+                synchronized (this) {
+                    if (pendingCalls.isEmpty()) {
+                        return;
+                    }
+                }
+                send();
+            }
+
+            /**
+             * Sends the pending calls and the given ones in a UIDL request.
+             *
+             * @return the response
+             */
+            private String send(JsonObject... rpcs) throws IOException, InterruptedException {
+                JsonObject message;
+                synchronized (this) {
+                    message = message();
+                    JsonArray rpc = Json.createArray();
+                    for (JsonObject call : pendingCalls) {
+                        rpc.set(rpc.length(), call);
+                    }
+                    for (JsonObject call : rpcs) {
+                        rpc.set(rpc.length(), call);
+                    }
+                    pendingCalls.clear();
+                    message.put("rpc", rpc);
+                    clientId++;
+                }
+                String response = post(message);
+                received(response, true);
+                return response;
+            }
+
+            private synchronized JsonObject message() {
+                JsonObject message = Json.createObject();
+                message.put("csrfToken", csrfToken);
+                message.put("rpc", Json.createArray());
+                message.put("syncId", syncId);
+                message.put("clientId", clientId);
+                return message;
+            }
+
+            private String get(String query) throws IOException, InterruptedException {
+                return request(HttpRequest.newBuilder(base.resolve(query)).GET());
+            }
+
+            private String post(JsonObject message) throws IOException, InterruptedException {
+                return request(HttpRequest.newBuilder(base.resolve("?v-r=uidl&v-uiId=" + uiId))
+                        .header("Content-Type", "application/json; charset=UTF-8")
+                        .POST(HttpRequest.BodyPublishers.ofString(message.toJson())));
+            }
+
+            private String request(HttpRequest.Builder request) throws IOException, InterruptedException {
+                if (cookie != null) {
+                    request.header("Cookie", cookie);
+                }
+                HttpResponse<String> response = http.send(request.timeout(Duration.ofMillis(TIMEOUT_MILLIS)).build(),
+                        HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+                if (response.statusCode() != 200) {
+                    throw new IOException("HTTP " + response.statusCode() + " from " + response.uri());
+                }
+                response.headers().firstValue("Set-Cookie")
+                        .filter(value -> value.startsWith("JSESSIONID="))
+                        .ifPresent(value -> cookie = value.split(";", 2)[0]);
+                return response.body();
+            }
+
+            // The messages from the server
+
+            /**
+             * @return false if the message was not a UIDL message, e.g. the handshake or a heartbeat of the push
+             * connection
+             */
+            private boolean received(String message, boolean response) {
+                if (message.startsWith(UIDL_PREFIX)) {
+                    message = message.substring(UIDL_PREFIX.length());
+                }
+                if (!message.startsWith("[") && !message.startsWith("{")) {
+                    return false;
+                }
+                countResults(message);
+                JsonValue uidl = Json.parse(message);
+                if (uidl.getType() == JsonType.ARRAY) {
+                    JsonArray messages = (JsonArray) uidl;
+                    for (int i = 0; i < messages.length(); i++) {
+                        handle(messages.getObject(i), response);
+                    }
+                } else {
+                    handle((JsonObject) uidl, response);
+                }
+                return true;
+            }
+
+            /**
+             * Records the latency of the results shown in the message, a push or a response to a request.
+             */
+            private void countResults(String message) {
+                LocalTime now = LocalTime.now();
+                Matcher result = RESULT.matcher(message);
+                while (result.find()) {
+                    long nanos = Duration.between(LocalTime.parse(result.group(1)), now).toNanos();
+                    // Completed before midnight
+                    step.latency.record(nanos < 0 ? nanos + TimeUnit.DAYS.toNanos(1) : nanos);
+                    pushedResults.release();
+                }
+            }
+
+            @Override
+            public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+                try {
+                    pushBuffer.append(data);
+                    if (last) {
+                        splitPushedMessages();
+                    }
+                } catch (RuntimeException e) {
+                    step.failed(e);
+                }
+                webSocket.request(1);
+                return null;
+            }
+
+            /**
+             * A frame may hold several messages, each prefixed by its length, or a part of one.
+             */
+            private void splitPushedMessages() {
+                while (!pushBuffer.isEmpty()) {
+                    int separator = pushBuffer.indexOf("|");
+                    if (separator < 0 || !MESSAGE_LENGTH.matcher(pushBuffer.subSequence(0, separator)).matches()) {
+                        pushed(pushBuffer.toString());
+                        pushBuffer.setLength(0);
+                        return;
+                    }
+                    int end = separator + 1 + Integer.parseInt(pushBuffer.substring(0, separator));
+                    if (pushBuffer.length() < end) {
+                        // The rest comes in the next frames
+                        return;
+                    }
+                    pushed(pushBuffer.substring(separator + 1, end));
+                    pushBuffer.delete(0, end);
+                }
+            }
+
+            private void pushed(String message) {
+                if (received(message, false)) {
+                    step.pushes.increment();
+                }
+            }
+
+            @Override
+            public void onError(WebSocket webSocket, Throwable error) {
+                if (!closing) {
+                    step.failed(error);
+                }
+            }
+        }
+    }
+}
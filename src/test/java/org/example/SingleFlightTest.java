@@ -0,0 +1,123 @@
+package org.example;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the sharing of the calls in flight and the reference counted cancellation of the shared work.
+ */
+class SingleFlightTest {
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    // The work started, completed by the tests
+    private final List<CompletableFuture<String>> work = new ArrayList<>();
+
+    private CompletableFuture<String> call() {
+        CompletableFuture<String> started = new CompletableFuture<>();
+        work.add(started);
+        return started;
+    }
+
+    @Test
+    void concurrentCallsShareTheWork() {
+        CompletableFuture<String> first = singleFlight.execute("key", this::call);
+        CompletableFuture<String> second = singleFlight.execute("key", this::call);
+        CompletableFuture<String> other = singleFlight.execute("other", this::call);
+
+        assertEquals(2, work.size());
+        assertNotSame(first, second);
+        assertEquals(1, singleFlight.getSharedCalls());
+        assertEquals(2, singleFlight.getInFlight());
+
+        work.get(0).complete("result");
+        assertEquals("result", first.join());
+        assertEquals("result", second.join());
+        assertFalse(other.isDone());
+        assertEquals(1, singleFlight.getInFlight());
+    }
+
+    @Test
+    void completedWorkIsNotCached() {
+        singleFlight.execute("key", this::call);
+        work.get(0).complete("first");
+
+        CompletableFuture<String> again = singleFlight.execute("key", this::call);
+        assertEquals(2, work.size());
+        work.get(1).complete("second");
+        assertEquals("second", again.join());
+    }
+
+    @Test
+    void failureIsSharedByAllWaiters() {
+        CompletableFuture<String> first = singleFlight.execute("key", this::call);
+        CompletableFuture<String> second = singleFlight.execute("key", this::call);
+
+        IllegalStateException failure = new IllegalStateException("Failed");
+        work.get(0).completeExceptionally(failure);
+        assertSame(failure, assertThrows(ExecutionException.class, first::get).getCause());
+        assertSame(failure, assertThrows(ExecutionException.class, second::get).getCause());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    void workIsCancelledOnlyWhenTheLastWaiterCancels() {
+        CompletableFuture<String> first = singleFlight.execute("key", this::call);
+        CompletableFuture<String> second = singleFlight.execute("key", this::call);
+        CompletableFuture<String> third = singleFlight.execute("key", this::call);
+
+        assertTrue(first.cancel(true));
+        assertTrue(second.cancel(true));
+        // Cancelling again doesn't count as another waiter leaving
+        assertTrue(first.cancel(true));
+        assertFalse(work.get(0).isCancelled());
+        assertEquals(1, singleFlight.getInFlight());
+
+        assertTrue(third.cancel(true));
+        assertTrue(work.get(0).isCancelled());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+
+    @Test
+    void remainingWaiterGetsTheResultAfterOthersCancel() {
+        CompletableFuture<String> cancelled = singleFlight.execute("key", this::call);
+        CompletableFuture<String> waiting = singleFlight.execute("key", this::call);
+
+        cancelled.cancel(true);
+        work.get(0).complete("result");
+        assertEquals("result", waiting.join());
+        assertTrue(cancelled.isCancelled());
+    }
+
+    @Test
+    void callAfterAbandonedFlightStartsNewWork() {
+        singleFlight.execute("key", this::call).cancel(true);
+
+        CompletableFuture<String> next = singleFlight.execute("key", this::call);
+        assertEquals(2, work.size());
+        assertTrue(work.get(0).isCancelled());
+        assertFalse(work.get(1).isCancelled());
+        work.get(1).complete("result");
+        assertEquals("result", next.join());
+    }
+
+    @Test
+    void callFailingToStartFailsTheWaiter() {
+        CompletableFuture<String> failed = singleFlight.execute("key", () -> {
+            throw new IllegalStateException("Can't start");
+        });
+
+        assertTrue(failed.isCompletedExceptionally());
+        assertEquals(0, singleFlight.getInFlight());
+    }
+}
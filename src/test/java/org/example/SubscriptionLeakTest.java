@@ -0,0 +1,101 @@
+package org.example;
+
+import com.vaadin.flow.component.UI;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.example.views.ReallyLongActions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A regression test for the result subscriptions of ReallyLongActions: opens and closes the view repeatedly while a
+ * few long running tasks are shown in it. A closed (detached) view must release its subscriptions and its task
+ * listener, so the long running tasks don't keep it and its UI in the memory.
+ */
+class SubscriptionLeakTest {
+
+    /**
+     * Many cycles, a leak that keeps only some of the closed views, e.g. the ones closed while a task event was being
+     * dispatched, takes many of them to show up.
+     */
+    private static final int VIEWS = 2000;
+    private static final int TASKS = 10;
+
+    private TaskExecutors taskExecutors;
+    private SlowService slowService;
+    private AppWideTasks appWideTasks;
+    private final List<Task> tasks = new ArrayList<>();
+
+    @BeforeEach
+    void startTasks() {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        taskExecutors = new TaskExecutors(TaskExecutors.Mode.VIRTUAL, 1, meterRegistry);
+        DurationEstimator estimator = new DurationEstimator(50, 1000, TaskClock.system(), meterRegistry);
+        slowService = new SlowService(taskExecutors, estimator, false, 0.95, 0.1, 0, meterRegistry);
+        TaskAdmission admission = new TaskAdmission(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, meterRegistry);
+        TaskResultCache results = new TaskResultCache(60, 1000, 1L << 30, 1 << 20,
+                System.getProperty("java.io.tmpdir"), meterRegistry);
+        appWideTasks = new AppWideTasks(taskExecutors, admission, TaskJournal.disabled(), results,
+                new LocalTaskRegistry(), AppWideTasks.Storage.OBJECTS, 1000, TaskClock.system(), estimator,
+                meterRegistry);
+        for (int i = 0; i < TASKS; i++) {
+            // Long enough to outlive the test
+            tasks.add(appWideTasks.startTask("Popular long task " + i, 3600));
+        }
+    }
+
+    @AfterEach
+    void stopServices() {
+        UI.setCurrent(null);
+        appWideTasks.stopExpiryThread();
+        slowService.shutdown();
+        taskExecutors.shutdown();
+    }
+
+    @Test
+    void closedViewsAreReleased() throws InterruptedException {
+        List<WeakReference<ReallyLongActions>> closedViews = new ArrayList<>();
+        for (int i = 0; i < VIEWS; i++) {
+            UI ui = new UI();
+            UI.setCurrent(ui);
+            ReallyLongActions view = new ReallyLongActions(appWideTasks, slowService);
+            ui.add(view);
+            // Like the browser fetching the rows of the viewport, the running tasks shown are subscribed to
+            taskGrid(view).getLazyDataView().getItems().toList();
+            for (Task task : tasks) {
+                assertEquals(1, task.subscriberCount(), "The open view should be subscribed to " + task.name());
+            }
+
+            ui.remove(view);
+            for (Task task : tasks) {
+                assertEquals(0, task.subscriberCount(), "The closed view is still subscribed to " + task.name());
+            }
+            closedViews.add(new WeakReference<>(view));
+        }
+        UI.setCurrent(null);
+
+        // A few rounds, a single System.gc() is only a hint
+        for (int i = 0; i < 10 && closedViews.stream().anyMatch(view -> view.get() != null); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        long retained = closedViews.stream().filter(view -> view.get() != null).count();
+        assertEquals(0, retained, retained + " of " + VIEWS + " closed views are still referenced");
+        assertTrue(tasks.stream().noneMatch(Task::isCompleted), "The tasks should still be running");
+    }
+
+    private static ReallyLongActions.TaskGrid taskGrid(ReallyLongActions view) {
+        return view.getChildren()
+                .filter(ReallyLongActions.TaskGrid.class::isInstance)
+                .map(ReallyLongActions.TaskGrid.class::cast)
+                .findFirst()
+                .orElseThrow();
+    }
+}
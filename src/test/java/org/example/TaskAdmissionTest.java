@@ -0,0 +1,137 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the limits of the admission control and the handover of the slots of the finished tasks to the queued ones.
+ */
+class TaskAdmissionTest {
+
+    private final AtomicLong ids = new AtomicLong();
+    private final List<Task> started = new ArrayList<>();
+
+    private TaskAdmission admission(int maxActive, int maxPerOwner, int maxQueued) {
+        return new TaskAdmission(maxActive, maxPerOwner, maxQueued, new SimpleMeterRegistry());
+    }
+
+    private Task startTask() {
+        Task task = new Task(ids.incrementAndGet(), "Task " + ids.get(), LocalDateTime.now(), 60);
+        started.add(task);
+        return task;
+    }
+
+    private Task startFinishedTask() {
+        Task task = startTask();
+        task.complete("Done right away");
+        return task;
+    }
+
+    @Test
+    void globalLimitQueuesAndQueueLimitRejects() {
+        TaskAdmission admission = admission(2, Integer.MAX_VALUE, 2);
+        TaskTicket first = admission.admit("a", this::startTask);
+        TaskTicket second = admission.admit("b", this::startTask);
+        TaskTicket third = admission.admit("c", this::startTask);
+        TaskTicket fourth = admission.admit("d", this::startTask);
+
+        assertTrue(first.getTask().isDone());
+        assertTrue(second.getTask().isDone());
+        assertFalse(third.getTask().isDone());
+        assertEquals(0, first.getQueuePosition());
+        assertEquals(1, third.getQueuePosition());
+        assertEquals(2, fourth.getQueuePosition());
+        assertEquals(2, admission.getQueueSize());
+
+        assertThrows(TaskRejectedException.class, () -> admission.admit("e", this::startTask));
+        assertEquals(2, admission.getQueueSize());
+        assertEquals(2, started.size());
+    }
+
+    @Test
+    void perOwnerLimitCountsRunningAndQueuedTasks() {
+        TaskAdmission admission = admission(1, 2, 10);
+        admission.admit("a", this::startTask);
+        admission.admit("a", this::startTask);
+        assertEquals(1, admission.getQueueSize());
+
+        assertThrows(TaskRejectedException.class, () -> admission.admit("a", this::startTask));
+        // The other owners are not limited by the tasks of a
+        admission.admit("b", this::startTask);
+        assertEquals(2, admission.getQueueSize());
+    }
+
+    @Test
+    void finishedTaskHandsItsSlotToTheNextInQueue() {
+        TaskAdmission admission = admission(1, 2, 10);
+        TaskTicket running = admission.admit("a", this::startTask);
+        TaskTicket queued = admission.admit("b", this::startTask);
+        assertFalse(queued.getTask().isDone());
+
+        running.getTask().join().cancel();
+
+        assertTrue(queued.getTask().isDone());
+        assertEquals(0, admission.getQueueSize());
+        // The slot was handed over, not freed: the next one is queued again
+        TaskTicket next = admission.admit("c", this::startTask);
+        assertEquals(1, next.getQueuePosition());
+        // The owner of the finished task may submit again
+        admission.admit("a", this::startTask);
+        admission.admit("a", this::startTask);
+    }
+
+    @Test
+    void withdrawnTicketLeavesTheQueue() {
+        TaskAdmission admission = admission(1, 1, 10);
+        admission.admit("a", this::startTask);
+        TaskTicket queued = admission.admit("b", this::startTask);
+
+        assertTrue(queued.cancel());
+        assertTrue(queued.getTask().isCancelled());
+        assertEquals(0, admission.getQueueSize());
+        assertFalse(queued.cancel());
+        // Not counted for its owner anymore
+        admission.admit("b", this::startTask);
+    }
+
+    @Test
+    void failingStarterReleasesTheSlot() {
+        TaskAdmission admission = admission(1, 1, 10);
+        TaskTicket failed = admission.admit("a", () -> {
+            throw new IllegalStateException("Can't start");
+        });
+
+        assertTrue(failed.getTask().isCompletedExceptionally());
+        assertTrue(admission.admit("a", this::startTask).getTask().isDone());
+    }
+
+    @Test
+    void synchronouslyFinishingTasksAreHandedOverWithoutRecursion() {
+        int queued = 100_000;
+        TaskAdmission admission = admission(1, Integer.MAX_VALUE, queued);
+        TaskTicket running = admission.admit("owner", this::startTask);
+        List<TaskTicket> tickets = new ArrayList<>();
+        for (int i = 0; i < queued; i++) {
+            tickets.add(admission.admit("owner" + i, this::startFinishedTask));
+        }
+
+        // Each queued task finishes already while being started, recursing into the next one would overflow
+        running.getTask().join().cancel();
+
+        assertEquals(0, admission.getQueueSize());
+        assertTrue(tickets.stream().allMatch(ticket -> ticket.getTask().isDone()));
+        assertEquals(queued + 1, started.size());
+        // All slots are free again
+        assertTrue(admission.admit("owner", this::startTask).getTask().isDone());
+    }
+}
@@ -0,0 +1,244 @@
+package org.example;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the recovery of the tasks from the journal, also from a torn or corrupted tail, and the compaction.
+ */
+@Timeout(30)
+class TaskJournalTest {
+
+    private static final long START = 1_700_000_000_000L;
+
+    private Path directory;
+    private Path path;
+    private TaskJournal journal;
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory("task-journal-test");
+        path = directory.resolve("tasks.journal");
+    }
+
+    @AfterEach
+    void deleteDirectory() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private TaskJournal.Recovery open() {
+        return open(10, Integer.MAX_VALUE);
+    }
+
+    private TaskJournal.Recovery open(int retainedResults, int compactMinRecords) {
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new TaskJournal(path.toString(), 0, retainedResults, compactMinRecords, 0.5);
+        return journal.open();
+    }
+
+    @Test
+    void disabledJournalRecoversNothing() {
+        TaskJournal disabled = TaskJournal.disabled();
+        assertFalse(disabled.isEnabled());
+        TaskJournal.Recovery recovery = disabled.open();
+
+        assertTrue(recovery.running().isEmpty());
+        assertTrue(recovery.completed().isEmpty());
+        assertEquals(0, recovery.nextId());
+        disabled.started(1, "Not journaled", START, 10, false);
+        disabled.close();
+    }
+
+    @Test
+    void replaysStartedProgressAndCompletedRecords() {
+        TaskJournal.Recovery empty = open();
+        assertTrue(empty.running().isEmpty());
+        assertEquals(0, empty.nextId());
+
+        journal.started(1, "Running", START, 60, false);
+        journal.started(2, "Job", START + 1000, 30, true);
+        journal.started(3, "Completed", START + 2000, 10, false);
+        journal.started(4, "Cancelled", START + 3000, 10, false);
+        journal.progress(1, 0.2);
+        journal.progress(1, 0.5);
+        journal.completed(3, "Result of 3");
+        journal.cancelled(4);
+
+        TaskJournal.Recovery recovery = open();
+        assertEquals(List.of(
+                        new TaskJournal.Entry(1, "Running", START, 60, false, 0.5, null),
+                        new TaskJournal.Entry(2, "Job", START + 1000, 30, true, 0, null)),
+                recovery.running());
+        assertEquals(List.of(new TaskJournal.Entry(3, "Completed", START + 2000, 10, false, 0, "Result of 3")),
+                recovery.completed());
+        assertEquals(5, recovery.nextId());
+    }
+
+    @Test
+    void retainsOnlyTheLatestResults() {
+        open(2, Integer.MAX_VALUE);
+        for (long id = 1; id <= 5; id++) {
+            journal.started(id, "Task " + id, START, 10, false);
+            journal.completed(id, "Result of " + id);
+        }
+
+        TaskJournal.Recovery recovery = open(2, Integer.MAX_VALUE);
+        assertEquals(List.of(4L, 5L), recovery.completed().stream().map(TaskJournal.Entry::id).toList());
+        assertEquals(6, recovery.nextId());
+    }
+
+    @Test
+    void dropsTornTail() throws IOException {
+        open();
+        journal.started(1, "Complete record", START, 10, false);
+        journal.close();
+        long intact = Files.size(path);
+        open();
+        journal.started(2, "Torn record", START, 10, false);
+        journal.close();
+        // A crash in the middle of writing the last record
+        truncate(Files.size(path) - 3);
+
+        TaskJournal.Recovery recovery = open();
+        assertEquals(List.of(1L), recovery.running().stream().map(TaskJournal.Entry::id).toList());
+        assertEquals(2, recovery.nextId());
+        // The torn tail is not kept by the compaction either
+        assertEquals(intact, Files.size(path));
+    }
+
+    @Test
+    void dropsTailOnChecksumMismatch() throws IOException {
+        open();
+        journal.started(1, "Intact", START, 10, false);
+        journal.started(2, "Corrupted", START, 10, false);
+        journal.close();
+        long endOfCorrupted = Files.size(path);
+        open();
+        journal.started(3, "After the corrupted one", START, 10, false);
+        journal.close();
+        // Flips the last byte of the name of the second task
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            file.read(last, endOfCorrupted - 1);
+            last.put(0, (byte) ~last.get(0));
+            file.write(last.flip(), endOfCorrupted - 1);
+        }
+
+        TaskJournal.Recovery recovery = open();
+        // Nothing after the corruption can be trusted, the watermark written when reopening still counts 2
+        assertEquals(List.of(1L), recovery.running().stream().map(TaskJournal.Entry::id).toList());
+        assertEquals(3, recovery.nextId());
+    }
+
+    @Test
+    void dropsRecordWithImpossibleLength() throws IOException {
+        open();
+        journal.started(1, "Intact", START, 10, false);
+        journal.close();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            file.write(ByteBuffer.allocate(8).putInt(Integer.MAX_VALUE).putInt(0).flip());
+        }
+
+        assertEquals(1, open().running().size());
+    }
+
+    @Test
+    void idWatermarkKeepsTheSequenceAfterCompaction() {
+        // No results retained, the completed task with the highest id is compacted away
+        open(0, Integer.MAX_VALUE);
+        journal.started(7, "Highest id", START, 10, false);
+        journal.completed(7, "Result");
+
+        TaskJournal.Recovery compacted = open(0, Integer.MAX_VALUE);
+        assertTrue(compacted.completed().isEmpty());
+        assertEquals(8, compacted.nextId());
+        // Only the watermark is left in the file
+        TaskJournal.Recovery again = open(0, Integer.MAX_VALUE);
+        assertTrue(again.running().isEmpty());
+        assertEquals(8, again.nextId());
+    }
+
+    @Test
+    void compactionOnOpenKeepsTheState() throws IOException {
+        open();
+        journal.started(1, "Running", START, 60, false);
+        for (int i = 1; i <= 100; i++) {
+            journal.progress(1, i / 100.0);
+        }
+        journal.started(2, "Completed", START, 10, false);
+        journal.completed(2, "Result");
+        journal.started(3, "Cancelled", START, 10, false);
+        journal.cancelled(3);
+        journal.close();
+        long before = Files.size(path);
+
+        TaskJournal.Recovery recovery = open();
+        long after = Files.size(path);
+        assertTrue(after < before / 10, "Compacted from " + before + " to " + after + " bytes");
+        assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".compacting")));
+
+        assertEquals(recovery, open());
+        assertEquals(after, Files.size(path));
+    }
+
+    @Test
+    void compactsWhileRunningWhenMostRecordsAreDead() throws Exception {
+        open(10, 100);
+        journal.started(1, "Running", START, 60, false);
+        for (int i = 1; i <= 1000; i++) {
+            journal.progress(1, i / 1000.0);
+        }
+        journal.started(2, "Started after the checkpoints", START, 10, false);
+
+        // Over 25 kB if not compacted, the superseded checkpoints are compacted away every 100 records or so
+        for (int i = 0; i < 100 && !(isWritten("Started after the checkpoints") && Files.size(path) < 5000); i++) {
+            Thread.sleep(50);
+        }
+        long size = Files.size(path);
+        assertTrue(isWritten("Started after the checkpoints"));
+        assertTrue(size < 5000, "The journal of " + size + " bytes should have been compacted");
+
+        // Appended to the compacted journal
+        journal.completed(2, "Result");
+        TaskJournal.Recovery recovery = open();
+        assertEquals(List.of(new TaskJournal.Entry(1, "Running", START, 60, false, 1.0, null)), recovery.running());
+        assertEquals(List.of(2L), recovery.completed().stream().map(TaskJournal.Entry::id).toList());
+        assertEquals(3, recovery.nextId());
+    }
+
+    private boolean isWritten(String name) throws IOException {
+        return Files.readString(path, StandardCharsets.ISO_8859_1).contains(name);
+    }
+
+    private void truncate(long size) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.truncate(size);
+        }
+    }
+}
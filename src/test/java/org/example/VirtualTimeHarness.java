@@ -0,0 +1,176 @@
+package org.example;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the task scheduling in virtual time: pushes a million tasks, arriving evenly over an hour with durations of up
+ * to ten minutes, through start, subscribe and complete in seconds of real time. Like the expiry thread, which sleeps
+ * until the next deadline, the harness jumps the {@link VirtualClock} from event to event (the arrival of a task or
+ * a deadline) and lets AppWideTasks complete the due tasks.
+ * <p>
+ * Reports the completion lag, the real time from the deadline of a task (the moment the virtual clock reaches it)
+ * to its subscriber being notified, and the CPU cost of the scheduling: the CPU time of the thread starting and
+ * completing the tasks, and of the whole process, which includes notifying the subscribers. Run with the number of
+ * tasks (default 1000000), the arrival window (default 3600) and the maximum duration (default 600) in seconds, and
+ * the storage of the tasks (OBJECTS or COMPACT, default OBJECTS).
+ */
+public class VirtualTimeHarness {
+
+    public static void main(String[] args) throws InterruptedException {
+        int taskCount = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long windowSeconds = args.length > 1 ? Long.parseLong(args[1]) : 3600;
+        int maxDuration = args.length > 2 ? Integer.parseInt(args[2]) : 600;
+        AppWideTasks.Storage storage = args.length > 3 ? AppWideTasks.Storage.valueOf(args[3])
+                : AppWideTasks.Storage.OBJECTS;
+
+        VirtualClock clock = new VirtualClock();
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TaskExecutors taskExecutors = new TaskExecutors(TaskExecutors.Mode.VIRTUAL, 1, meterRegistry);
+        TaskAdmission admission = new TaskAdmission(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, meterRegistry);
+        TaskResultCache results = new TaskResultCache(60, 10_000_000, 1L << 30, 1 << 20,
+                System.getProperty("java.io.tmpdir"), meterRegistry);
+        AppWideTasks tasks = new AppWideTasks(taskExecutors, admission, TaskJournal.disabled(),
+                results, new LocalTaskRegistry(), storage, 1000,
+                clock, new DurationEstimator(50, 1000, clock, meterRegistry), meterRegistry);
+
+        // The events: arrivals at regular intervals and the deadlines in order
+        long arrivalInterval = TimeUnit.SECONDS.toNanos(windowSeconds) / taskCount;
+        Random random = new Random(42);
+        int[] durations = new int[taskCount];
+        long[] deadlines = new long[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            durations[i] = 1 + random.nextInt(maxDuration);
+            deadlines[i] = deadline(i, arrivalInterval, durations[i]);
+        }
+        Arrays.sort(deadlines);
+        // When the virtual clock reached the deadlines, in real time. Written before the tasks are completed
+        long[] reached = new long[taskCount];
+        long[] lags = new long[taskCount];
+        CountDownLatch completed = new CountDownLatch(taskCount);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long processCpuStart = os.getProcessCpuTime();
+        long schedulerCpuStart = threads.getCurrentThreadCpuTime();
+        long realStart = System.nanoTime();
+
+        int arrived = 0;
+        int due = 0;
+        while (arrived < taskCount || due < taskCount) {
+            long arrival = arrived < taskCount ? arrived * arrivalInterval : Long.MAX_VALUE;
+            long deadline = due < taskCount ? deadlines[due] : Long.MAX_VALUE;
+            if (arrival < deadline) {
+                clock.set(arrival);
+                long id = tasks.scheduleTask("Simulated task " + arrived, durations[arrived]);
+                int index = arrived;
+                long taskDeadline = deadline(index, arrivalInterval, durations[index]);
+                tasks.subscribe(id).whenComplete((result, error) -> {
+                    lags[index] = System.nanoTime() - reached[Arrays.binarySearch(deadlines, taskDeadline)];
+                    completed.countDown();
+                });
+                arrived++;
+            } else {
+                clock.set(deadline);
+                long now = System.nanoTime();
+                while (due < taskCount && deadlines[due] == deadline) {
+                    reached[due++] = now;
+                }
+                tasks.maintainTasks();
+            }
+        }
+        long schedulerCpu = threads.getCurrentThreadCpuTime() - schedulerCpuStart;
+        completed.await();
+        long real = System.nanoTime() - realStart;
+        long processCpu = os.getProcessCpuTime() - processCpuStart;
+
+        Arrays.sort(lags);
+        System.out.printf("%d tasks (%s storage), %d s of virtual time in %.1f s of real time%n", taskCount, storage,
+                TimeUnit.NANOSECONDS.toSeconds(clock.nanoTime()), real / 1e9);
+        System.out.printf("Completion lag: p50 %d us, p99 %d us, p99.9 %d us, max %d us%n",
+                micros(lags, 0.5), micros(lags, 0.99), micros(lags, 0.999), lags[taskCount - 1] / 1000);
+        System.out.printf("Scheduler CPU: %d ns per task (start and complete), process CPU: %d ns per task%n",
+                schedulerCpu / taskCount, processCpu / taskCount);
+
+        tasks.stopExpiryThread();
+        taskExecutors.shutdown();
+        System.exit(0);
+    }
+
+    private static long deadline(int index, long arrivalInterval, int duration) {
+        return index * arrivalInterval + TimeUnit.SECONDS.toNanos(duration);
+    }
+
+    private static long micros(long[] sortedNanos, double quantile) {
+        return sortedNanos[(int) Math.min(sortedNanos.length - 1, quantile * sortedNanos.length)] / 1000;
+    }
+
+    /**
+     * A clock that only moves when told to.
+     */
+    static class VirtualClock extends TaskClock {
+
+        private static final Instant START = Instant.parse("2024-01-01T00:00:00Z");
+
+        private final ZoneId zone;
+        /**
+         * Shared with the clocks of other zones.
+         */
+        private final AtomicLong nanos;
+
+        VirtualClock() {
+            this(ZoneOffset.UTC, new AtomicLong());
+        }
+
+        private VirtualClock(ZoneId zone, AtomicLong nanos) {
+            this.zone = zone;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @param time the new time, in nanoseconds, not before the current one
+         */
+        void set(long time) {
+            if (time < nanos.get()) {
+                throw new IllegalArgumentException("Time can't go backwards");
+            }
+            nanos.set(time);
+        }
+
+        @Override
+        public long nanoTime() {
+            return nanos.get();
+        }
+
+        @Override
+        public boolean isRealTime() {
+            return false;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zone;
+        }
+
+        @Override
+        public TaskClock withZone(ZoneId zone) {
+            return new VirtualClock(zone, nanos);
+        }
+
+        @Override
+        public Instant instant() {
+            return START.plusNanos(nanos.get());
+        }
+    }
+}